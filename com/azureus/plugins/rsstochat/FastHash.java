@@ -0,0 +1,92 @@
+/*
+ * Copyright (C) Bigly Software, Inc, All Rights Reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307, USA.
+ */
+
+
+package com.azureus.plugins.rsstochat;
+
+	// non-cryptographic 64 bit string hash for history keys. Works directly on the chars (four
+	// at a time) so there's no encoding to bytes and nothing is allocated. Ids come from feeds so
+	// this isn't meant to resist deliberate collisions, just to spread ordinary ones over 64 bits.
+	// The output is persisted in histories so must never change
+
+public class
+FastHash
+{
+	private static final long	SEED	= 0x2d358dccaa6c78a5L;
+	private static final long	M1		= 0x9e3779b97f4a7c15L;
+	private static final long	M2		= 0xbf58476d1ce4e5b9L;
+	
+	public static long
+	hash64(
+		CharSequence		str )
+	{
+		int	len = str.length();
+		
+		long	h = SEED ^ ( len * M1 );
+		
+		int	pos = 0;
+		
+		while( pos + 4 <= len ){
+			
+			long	v = 	((long)str.charAt( pos )) |
+							((long)str.charAt( pos+1 ) << 16 ) |
+							((long)str.charAt( pos+2 ) << 32 ) |
+							((long)str.charAt( pos+3 ) << 48 );
+			
+			h = mix( h ^ v );
+			
+			pos += 4;
+		}
+		
+		if ( pos < len ){
+			
+			long	v = 0;
+			
+			for ( int shift=0; pos<len; shift+=16 ){
+				
+				v |= ((long)str.charAt( pos++ )) << shift;
+			}
+			
+			h = mix( h ^ v ^ M2 );
+		}
+		
+		return( finish( h ));
+	}
+	
+	private static long
+	mix(
+		long	h )
+	{
+		h *= M1;
+		
+		return( Long.rotateLeft( h, 31 ) * M2 );
+	}
+	
+	private static long
+	finish(
+		long	h )
+	{
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		
+		return( h );
+	}
+}
@@ -0,0 +1,888 @@
+/*
+ * Copyright (C) Bigly Software, Inc, All Rights Reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307, USA.
+ */
+
+
+package com.azureus.plugins.rsstochat;
+
+import java.io.InputStream;
+import java.util.*;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamReader;
+
+import com.biglybt.core.util.Base32;
+import com.biglybt.core.util.ByteFormatter;
+import com.biglybt.pif.utils.xml.rss.RSSChannel;
+import com.biglybt.pif.utils.xml.rss.RSSFeed;
+import com.biglybt.pif.utils.xml.rss.RSSItem;
+import com.biglybt.pif.utils.xml.simpleparser.SimpleXMLParserDocumentAttribute;
+import com.biglybt.pif.utils.xml.simpleparser.SimpleXMLParserDocumentNode;
+import com.biglybt.pifimpl.local.utils.xml.rss.RSSUtils;
+
+	// extracts just the item fields that the plugin uses from an RSS or Atom document without
+	// building a DOM. Feeds that the streaming parser rejects (undeclared entities and the like)
+	// can still be handled by converting the DOM based RSSFeed via fromDOM. Documents are parsed
+	// as they are read, the caller's stream enforces MAX_DOCUMENT_SIZE
+
+public class
+FeedParser
+{
+	public static final int MAX_DOCUMENT_SIZE	= 16*1024*1024;
+	
+	private static final XMLInputFactory	factory = XMLInputFactory.newInstance();
+	
+		// item child elements of interest. Qualified names map to their handler via a case insensitive
+		// table so lookups don't need a lower-cased copy of the name. A few elements are recognised
+		// by local name whatever their prefix, these are checked when the qualified name isn't known
+	
+	private static final int	H_NONE				= 0;
+	private static final int	H_TITLE				= 1;
+	private static final int	H_PUBDATE			= 2;
+	private static final int	H_DC_DATE			= 3;
+	private static final int	H_ATOM_PUBLISHED	= 4;
+	private static final int	H_ATOM_UPDATED		= 5;
+	private static final int	H_ENCLOSURE			= 6;
+	private static final int	H_LINK				= 7;
+	private static final int	H_ATOM_CONTENT		= 8;
+	private static final int	H_DESCRIPTION		= 9;
+	private static final int	H_SIZE				= 10;
+	private static final int	H_SEEDS				= 11;
+	private static final int	H_PEERS				= 12;
+	private static final int	H_DOWNLOAD_URL		= 13;
+	private static final int	H_ASSET_HASH		= 14;
+	private static final int	H_INFO_HASH			= 15;
+	private static final int	H_THUMBNAIL			= 16;
+	
+	private static final Map<String,Integer>	handlers = new TreeMap<String,Integer>( String.CASE_INSENSITIVE_ORDER );
+	
+	private static final String[]	local_names		= { "enclosure", "link", "guid", "content", "description" };
+	private static final int[]		local_handlers	= { H_ENCLOSURE, H_LINK, H_LINK, H_ATOM_CONTENT, H_DESCRIPTION };
+	
+	static{
+		handlers.put( "title", 				H_TITLE );
+		handlers.put( "pubDate", 			H_PUBDATE );
+		handlers.put( "dc:date", 			H_DC_DATE );
+		handlers.put( "published", 			H_ATOM_PUBLISHED );
+		handlers.put( "updated", 			H_ATOM_UPDATED );
+		handlers.put( "vuze:size", 			H_SIZE );
+		handlers.put( "vuze:seeds", 		H_SEEDS );
+		handlers.put( "torrent:seeds", 		H_SEEDS );
+		handlers.put( "vuze:peers", 		H_PEERS );
+		handlers.put( "torrent:peers", 		H_PEERS );
+		handlers.put( "vuze:downloadurl", 	H_DOWNLOAD_URL );
+		handlers.put( "vuze:assethash", 	H_ASSET_HASH );
+		handlers.put( "torrent:infoHash", 	H_INFO_HASH );
+		handlers.put( "media:thumbnail", 	H_THUMBNAIL );
+		
+		for ( int i=0;i<local_names.length;i++ ){
+			
+			handlers.put( local_names[i], local_handlers[i] );
+		}
+	}
+	
+	static{
+		factory.setProperty( XMLInputFactory.IS_NAMESPACE_AWARE, false );
+		factory.setProperty( XMLInputFactory.IS_COALESCING, true );
+		factory.setProperty( XMLInputFactory.SUPPORT_DTD, false );
+		factory.setProperty( XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false );
+	}
+	
+		// the stream is read up to the end of the root element and isn't closed
+	
+	public static Feed
+	parse(
+		InputStream		is )
+		
+		throws Exception
+	{
+		XMLStreamReader	reader;
+		
+		synchronized( factory ){
+			
+			reader = factory.createXMLStreamReader( is );
+		}
+		
+		try{
+			Feed	feed = new Feed();
+			
+			StringBuilder	text = new StringBuilder( 256 );
+			
+			int		depth			= 0;
+			int		item_depth		= -1;
+			int		title_depth		= -1;
+			
+			Item				item			= null;
+			int					child_handler	= H_NONE;
+			Map<String,String>	child_attrs		= null;
+			
+			while( reader.hasNext()){
+				
+				int	event = reader.next();
+				
+				if ( event == XMLStreamConstants.START_ELEMENT ){
+					
+					depth++;
+					
+					String name = getFullName( reader );
+					
+					if ( depth == 1 ){
+						
+						feed.is_atom = name.equalsIgnoreCase( "feed" );
+					}
+					
+					if ( item == null ){
+						
+						if ( name.equalsIgnoreCase( feed.is_atom?"entry":"item" )){
+							
+							item 		= new Item( feed.items.size());
+							item_depth	= depth;
+							
+						}else if ( 	feed.title == null &&
+									name.equalsIgnoreCase( "title" ) &&
+									depth == ( feed.is_atom?2:3 )){
+							
+							title_depth = depth;
+							
+							text.setLength( 0 );
+						}
+					}else if ( depth == item_depth + 1 ){
+						
+						child_handler = getHandler( name );
+						
+							// nothing is gathered for elements that aren't of interest
+						
+						child_attrs	= child_handler==H_NONE?null:getAttributes( reader );
+						
+						text.setLength( 0 );
+					}
+				}else if ( 	event == XMLStreamConstants.CHARACTERS ||
+							event == XMLStreamConstants.CDATA ){
+					
+					if ( 	( item != null && depth == item_depth + 1 && child_handler != H_NONE ) ||
+							depth == title_depth ){
+						
+						text.append( reader.getTextCharacters(), reader.getTextStart(), reader.getTextLength());
+					}
+				}else if ( event == XMLStreamConstants.END_ELEMENT ){
+					
+					if ( item != null ){
+						
+						if ( depth == item_depth + 1 ){
+							
+							if ( child_handler != H_NONE ){
+								
+								item.processChild( child_handler, text.toString().trim(), child_attrs, feed.is_atom );
+							}
+						}else if ( depth == item_depth ){
+							
+							item.complete( feed.is_atom );
+							
+							feed.items.add( item );
+							
+							item = null;
+						}
+					}else if ( depth == title_depth ){
+						
+						feed.title = text.toString().trim();
+						
+						title_depth = -1;
+					}
+					
+					depth--;
+				}
+			}
+			
+			return( feed );
+			
+		}finally{
+			
+			reader.close();
+		}
+	}
+	
+	public static Feed
+	fromDOM(
+		RSSFeed		rss_feed )
+	{
+		Feed	feed = new Feed();
+		
+		feed.is_atom	= rss_feed.isAtomFeed();
+		
+		RSSChannel channel = rss_feed.getChannels()[0];
+		
+		feed.title		= channel.getTitle();
+		
+		RSSItem[] rss_items = channel.getItems();
+		
+		for ( RSSItem rss_item: rss_items ){
+			
+			Item item = new Item( feed.items.size());
+			
+			SimpleXMLParserDocumentNode[] kids = rss_item.getNode().getChildren();
+			
+			for ( SimpleXMLParserDocumentNode child: kids ){
+				
+				int	handler = getHandler( child.getFullName());
+				
+				if ( handler == H_NONE ){
+					
+					continue;
+				}
+				
+				Map<String,String>	attrs = null;
+				
+				SimpleXMLParserDocumentAttribute[] atts = child.getAttributes();
+				
+				if ( atts != null && atts.length > 0 ){
+					
+					attrs = new HashMap<String, String>();
+					
+					for ( SimpleXMLParserDocumentAttribute att: atts ){
+						
+						attrs.put( att.getName().toLowerCase( Locale.US ), att.getValue());
+					}
+				}
+				
+				String value = child.getValue();
+				
+				item.processChild( handler, value==null?"":value.trim(), attrs, feed.is_atom );
+			}
+			
+			item.title	= rss_item.getTitle();
+			
+			Date date = rss_item.getPublicationDate();
+			
+			item.time	= date==null?0:date.getTime();
+			
+			feed.items.add( item );
+		}
+		
+		return( feed );
+	}
+	
+		// package visible for Benchmarks
+	
+	static int
+	getHandler(
+		String		full_name )
+	{
+		Integer	handler = handlers.get( full_name );
+		
+		if ( handler != null ){
+			
+			return( handler );
+		}
+		
+		int	pos = full_name.indexOf( ':' );
+		
+		if ( pos != -1 ){
+			
+			int	local_len = full_name.length() - pos - 1;
+			
+			for ( int i=0;i<local_names.length;i++ ){
+				
+				String local_name = local_names[i];
+				
+				if ( 	local_name.length() == local_len &&
+						full_name.regionMatches( true, pos+1, local_name, 0, local_len )){
+					
+					return( local_handlers[i] );
+				}
+			}
+		}
+		
+		return( H_NONE );
+	}
+	
+	private static String
+	getFullName(
+		XMLStreamReader		reader )
+	{
+			// prefix handling differs between implementations when not namespace aware. The JRE's
+			// parser reports the qualified name as the local name so nothing is allocated here
+		
+		String	local 	= reader.getLocalName();
+		String	prefix	= reader.getPrefix();
+		
+		if ( prefix == null || prefix.length() == 0 ){
+			
+			return( local );
+		}
+		
+		return( prefix + ":" + local );
+	}
+	
+	private static Map<String,String>
+	getAttributes(
+		XMLStreamReader		reader )
+	{
+		int	num = reader.getAttributeCount();
+		
+		if ( num == 0 ){
+			
+			return( null );
+		}
+		
+		Map<String,String>	result = new HashMap<String, String>( num*2 );
+		
+		for ( int i=0;i<num;i++ ){
+			
+			String	name 	= reader.getAttributeLocalName( i );
+			String	prefix	= reader.getAttributePrefix( i );
+			
+			if ( prefix != null && prefix.length() > 0 ){
+				
+				name = prefix + ":" + name;
+			}
+			
+			result.put( name.toLowerCase( Locale.US ), reader.getAttributeValue( i ));
+		}
+		
+		return( result );
+	}
+	
+	public static class
+	Feed
+	{
+		private String			title;
+		private boolean			is_atom;
+		private List<Item>		items = new ArrayList<Item>();
+		private String			parse_error;
+		
+		public String
+		getTitle()
+		{
+			return( title==null?"":title );
+		}
+		
+		public boolean
+		isAtomFeed()
+		{
+			return( is_atom );
+		}
+		
+			// returns a new array each time, callers are free to reorder it
+		
+		public Item[]
+		getItems()
+		{
+			return( items.toArray( new Item[ items.size()]));
+		}
+		
+		public int
+		getItemCount()
+		{
+			return( items.size());
+		}
+		
+			// items oldest first (document order for equal dates), skipping dated items before
+			// 'skip_before' if > 0. Ordering is done lazily so consumers that only take a few
+			// items don't pay for sorting the rest
+		
+		public ItemQueue
+		getItemQueue(
+			long		skip_before )
+		{
+			return( new ItemQueue( items, skip_before ));
+		}
+		
+		public void
+		setParseError(
+			String		error )
+		{
+			parse_error	= error;
+		}
+		
+			// set if the streaming parser failed and the feed was converted from the DOM instead
+		
+		public String
+		getParseError()
+		{
+			return( parse_error );
+		}
+	}
+	
+		// binary min-heap over primitive (time,index) keys. Building it is O(n) and each
+		// removal O(log n)
+	
+	public static class
+	ItemQueue
+	{
+		private final List<Item>	items;
+		
+		private final long[]		times;
+		private final int[]			indexes;
+		
+		private int		size;
+		
+		private
+		ItemQueue(
+			List<Item>		_items,
+			long			skip_before )
+		{
+			items	= _items;
+			
+			int	num = items.size();
+			
+			times 	= new long[num];
+			indexes	= new int[num];
+			
+			for ( int i=0;i<num;i++ ){
+				
+				long	time = items.get( i ).time;
+				
+				if ( skip_before > 0 && time > 0 && time < skip_before ){
+					
+					continue;
+				}
+				
+				times[size]		= time;
+				indexes[size]	= i;
+				
+				size++;
+			}
+			
+			for ( int i=size/2-1;i>=0;i-- ){
+				
+				siftDown( i );
+			}
+		}
+		
+		public int
+		size()
+		{
+			return( size );
+		}
+		
+		public Item
+		next()
+		{
+			if ( size == 0 ){
+				
+				return( null );
+			}
+			
+			Item result = items.get( indexes[0] );
+			
+			size--;
+			
+			if ( size > 0 ){
+				
+				times[0]	= times[size];
+				indexes[0]	= indexes[size];
+				
+				siftDown( 0 );
+			}
+			
+			return( result );
+		}
+		
+		private boolean
+		less(
+			int		i,
+			int		j )
+		{
+			long	t1 = times[i];
+			long	t2 = times[j];
+			
+			return( t1 < t2 || ( t1 == t2 && indexes[i] < indexes[j] ));
+		}
+		
+		private void
+		siftDown(
+			int		pos )
+		{
+			long	time 	= times[pos];
+			int		index	= indexes[pos];
+			
+			while( true ){
+				
+				int	child = 2*pos + 1;
+				
+				if ( child >= size ){
+					
+					break;
+				}
+				
+				if ( child + 1 < size && less( child+1, child )){
+					
+					child++;
+				}
+				
+				long	c_time = times[child];
+				
+				if ( time < c_time || ( time == c_time && index < indexes[child] )){
+					
+					break;
+				}
+				
+				times[pos]		= c_time;
+				indexes[pos]	= indexes[child];
+				
+				pos = child;
+			}
+			
+			times[pos]		= time;
+			indexes[pos]	= index;
+		}
+	}
+	
+	public static class
+	Item
+	{
+		private final int	index;
+		
+		private String	title			= "";
+		private long	time;
+		private String	pub_date;
+		private String	dc_date;
+		private String	atom_published;
+		private String	atom_updated;
+		
+		private String	hash 			= "";
+		private String	dl_link;
+		private String	cdp_link;
+		private String	thumb_link;
+		private String	description;
+		
+		private long	size 		= -1;
+		private long	seeds		= -1;
+		private long	leechers	= -1;
+		
+		private
+		Item(
+			int		_index )
+		{
+			index	= _index;
+		}
+		
+		private void
+		processChild(
+			int					handler,
+			String				value,
+			Map<String,String>	attrs,
+			boolean				is_atom )
+		{
+			switch( handler ){
+			
+				case H_TITLE:{
+					
+					title = value;
+					
+					break;
+				}
+				case H_PUBDATE:{
+					
+					pub_date = value;
+					
+					break;
+				}
+				case H_DC_DATE:{
+					
+					dc_date = value;
+					
+					break;
+				}
+				case H_ATOM_PUBLISHED:{
+					
+					if ( is_atom ){
+						
+						atom_published = value;
+					}
+					
+					break;
+				}
+				case H_ATOM_UPDATED:{
+					
+					if ( is_atom ){
+						
+						atom_updated = value;
+					}
+					
+					break;
+				}
+				case H_ENCLOSURE:{
+					
+					if ( LinkClassifier.isTorrentType( getAttribute( attrs, "type" ))){
+						
+						String url = getAttribute( attrs, "url" );
+						
+						if ( url != null ){
+							
+							dl_link = url;
+						}
+						
+						String length = getAttribute( attrs, "length" );
+						
+						if ( length != null ){
+							
+							try{
+								size = Long.parseLong( length.trim());
+								
+							}catch( Throwable e ){
+							}
+						}
+					}
+					
+					break;
+				}
+				case H_LINK:{
+					
+					int	link_type = LinkClassifier.classify( value );
+					
+					if ( link_type == LinkClassifier.LINK_DOWNLOAD ){
+						
+						dl_link = value;
+						
+					}else if ( link_type == LinkClassifier.LINK_DETAILS ){
+						
+						cdp_link = value;
+						
+					}else{
+						
+							// see if this is an atom feed
+							//  <link rel="alternate" type="application/x-bittorrent" href="http://asdasd/
+						
+						if ( LinkClassifier.isTorrentType( getAttribute( attrs, "type" ))){
+							
+							String href = getAttribute( attrs, "href" );
+							
+							if ( href != null ){
+								
+								String link = LinkClassifier.isURL( href.trim())?LinkClassifier.normalise( href.trim()):null;
+								
+								if ( link != null ){
+									
+									dl_link = link;
+								}
+							}
+						}
+					}
+					
+					break;
+				}
+				case H_ATOM_CONTENT:{
+					
+					if ( !is_atom ){
+						
+						break;
+					}
+					
+					String src = getAttribute( attrs, "src" );
+					
+					if ( src != null ){
+						
+						boolean	is_dl_link =
+							LinkClassifier.isTorrentType( getAttribute( attrs, "type" )) ||
+							LinkClassifier.containsTorrentExtension( src );
+						
+						if ( is_dl_link && LinkClassifier.isURL( src )){
+							
+							dl_link = src;
+						}
+					}
+					
+					break;
+				}
+				case H_DESCRIPTION:{
+					
+					description = value;
+					
+					break;
+				}
+				case H_SIZE:{
+					
+					try{
+						size = Long.parseLong( value );
+						
+					}catch( Throwable e ){
+					}
+					
+					break;
+				}
+				case H_SEEDS:{
+					
+					try{
+						seeds = Long.parseLong( value );
+						
+					}catch( Throwable e ){
+					}
+					
+					break;
+				}
+				case H_PEERS:{
+					
+					try{
+						leechers = Long.parseLong( value );
+						
+					}catch( Throwable e ){
+					}
+					
+					break;
+				}
+				case H_DOWNLOAD_URL:{
+					
+					dl_link = value;
+					
+					break;
+				}
+				case H_ASSET_HASH:{
+					
+					hash = value;	// base32
+					
+					break;
+				}
+				case H_INFO_HASH:{
+					
+					hash = value;	// base 16, hmmmm, be consistent
+					
+					if ( hash.length() == 40 ){
+						
+						hash = Base32.encode( ByteFormatter.decodeString( hash ));
+					}
+					
+					break;
+				}
+				case H_THUMBNAIL:{
+					
+					String url = getAttribute( attrs, "url" );
+					
+					if ( url != null ){
+						
+						thumb_link = url.trim();
+					}
+					
+					break;
+				}
+			}
+		}
+		
+		private void
+		complete(
+			boolean		is_atom )
+		{
+				// same precedence as the DOM parse: published then updated for Atom, pubDate for RSS. The
+				// first present is used and an unparsable one leaves the item undated rather than falling
+				// back. dc:date is only consulted when the feed's own date elements are absent
+			
+			Date	date = null;
+			
+			try{
+				if ( is_atom ){
+					
+					String	str = atom_published!=null?atom_published:(atom_updated!=null?atom_updated:dc_date);
+					
+					if ( str != null ){
+						
+						date = RSSUtils.parseAtomDate( str );
+					}
+				}else if ( pub_date != null ){
+					
+					date = RSSUtils.parseRSSDate( pub_date );
+					
+				}else if ( dc_date != null ){
+					
+					date = RSSUtils.parseAtomDate( dc_date );
+				}
+			}catch( Throwable e ){
+			}
+			
+			time = date==null?0:date.getTime();
+			
+			pub_date		= null;
+			dc_date			= null;
+			atom_published	= null;
+			atom_updated	= null;
+		}
+		
+		private static String
+		getAttribute(
+			Map<String,String>	attrs,
+			String				name )
+		{
+			return( attrs==null?null:attrs.get( name ));
+		}
+		
+		public int
+		getIndex()
+		{
+			return( index );
+		}
+		
+		public String
+		getTitle()
+		{
+			return( title==null?"":title );
+		}
+		
+		public long
+		getTime()
+		{
+			return( time );
+		}
+		
+		public String
+		getHash()
+		{
+			return( hash );
+		}
+		
+		public String
+		getDownloadLink()
+		{
+			return( dl_link );
+		}
+		
+		public String
+		getDetailsLink()
+		{
+			return( cdp_link );
+		}
+		
+		public String
+		getThumbLink()
+		{
+			return( thumb_link );
+		}
+		
+		public String
+		getDescription()
+		{
+			return( description );
+		}
+		
+		public long
+		getSize()
+		{
+			return( size );
+		}
+		
+		public long
+		getSeeds()
+		{
+			return( seeds );
+		}
+		
+		public long
+		getLeechers()
+		{
+			return( leechers );
+		}
+	}
+}
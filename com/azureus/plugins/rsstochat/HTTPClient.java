@@ -0,0 +1,723 @@
+/*
+ * Copyright (C) Bigly Software, Inc, All Rights Reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307, USA.
+ */
+
+
+package com.azureus.plugins.rsstochat;
+
+import java.io.*;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.*;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import com.biglybt.core.util.AENetworkClassifier;
+import com.biglybt.core.util.AESemaphore;
+import com.biglybt.core.util.Constants;
+import com.biglybt.pifimpl.local.utils.resourcedownloader.ResourceDownloaderFactoryImpl;
+
+	// shared HTTP access for feeds, torrents and thumbnails. Public http(s) requests go direct so that
+	// the JRE's keep-alive cache can reuse connections - this only happens if the response body is
+	// read fully and closed and the connection isn't disconnected, so every path below does that.
+	// Requests per host are limited to what the keep-alive cache retains (http.maxConnections, default 5)
+	// so that bursts don't open connections that are then immediately discarded.
+	// Anything else (I2P, Tor, magnets and so on) goes via the resource downloader for its proxy handling.
+	// Redirects are followed here rather than by HttpURLConnection as it won't cross protocols (http to
+	// https being the common case) - one leading off the public network goes to the resource downloader
+
+public class
+HTTPClient
+{
+	public static final int	CONNECT_TIMEOUT		= 30*1000;
+	public static final int	READ_TIMEOUT		= 60*1000;
+	
+	private static final int	MAX_CONNECTIONS_PER_HOST	= 5;
+	
+	private static final int	DRAIN_LIMIT					= 64*1024;
+	
+	private static final int	MAX_REDIRECTS				= 8;
+	
+	private final String	user_agent = Constants.AZUREUS_NAME + " " + Constants.AZUREUS_VERSION;
+	
+		// only hosts with requests in progress have an entry
+	
+	private final Map<String,HostSlot>	host_slots = new HashMap<String, HostSlot>();
+	
+	public Response
+	get(
+		URL			url,
+		String		etag,
+		String		last_modified,
+		long		max_body )
+		
+		throws IOException
+	{
+		return( get( url, etag, last_modified, max_body, CONNECT_TIMEOUT, READ_TIMEOUT ));
+	}
+	
+		// the body is passed to 'reader' as it arrives rather than being returned in the response.
+		// Reading beyond max_body fails. Whatever the reader leaves unread is discarded
+	
+	public Response
+	get(
+		URL			url,
+		String		etag,
+		String		last_modified,
+		long		max_body,
+		BodyReader	reader )
+		
+		throws IOException
+	{
+		return( get( url, etag, last_modified, max_body, CONNECT_TIMEOUT, READ_TIMEOUT, reader ));
+	}
+	
+	public Response
+	get(
+		URL			url,
+		String		etag,
+		String		last_modified,
+		long		max_body,
+		int			connect_timeout,
+		int			read_timeout )
+		
+		throws IOException
+	{
+		return( get( url, etag, last_modified, max_body, connect_timeout, read_timeout, null ));
+	}
+	
+	private Response
+	get(
+		URL			url,
+		String		etag,
+		String		last_modified,
+		long		max_body,
+		int			connect_timeout,
+		int			read_timeout,
+		BodyReader	reader )
+		
+		throws IOException
+	{
+		for ( int i=0;i<=MAX_REDIRECTS;i++ ){
+			
+			if ( !isDirect( url )){
+				
+				return( getIndirect( url, max_body, reader ));
+			}
+			
+			Response response = getDirect( url, etag, last_modified, max_body, connect_timeout, read_timeout, reader );
+			
+			if ( response.redirect == null ){
+				
+				return( response );
+			}
+			
+			url = response.redirect;
+		}
+		
+		throw( new IOException( "Too many redirects for " + url ));
+	}
+	
+	private Response
+	getIndirect(
+		URL			url,
+		long		max_body,
+		BodyReader	reader )
+		
+		throws IOException
+	{
+		InputStream is;
+		
+		try{
+			is = new ResourceDownloaderFactoryImpl().create( url ).download();
+			
+		}catch( Throwable e ){
+			
+			throw( new IOException( "Download of " + url + " failed", e ));
+		}
+		
+		try{
+			return( new Response( HttpURLConnection.HTTP_OK, readBody( is, -1, max_body, reader ), null, null ));
+			
+		}finally{
+			
+			is.close();
+		}
+	}
+	
+	private Response
+	getDirect(
+		URL			url,
+		String		etag,
+		String		last_modified,
+		long		max_body,
+		int			connect_timeout,
+		int			read_timeout,
+		BodyReader	reader )
+		
+		throws IOException
+	{
+		String	slot_key = getSlotKey( url );
+		
+		AESemaphore slot = reserveSlot( slot_key );
+		
+		try{
+			HttpURLConnection con = (HttpURLConnection)url.openConnection();
+			
+			con.setConnectTimeout( connect_timeout );
+			con.setReadTimeout( read_timeout );
+			
+			con.setInstanceFollowRedirects( false );
+			
+			con.setRequestProperty( "User-Agent", user_agent );
+			con.setRequestProperty( "Accept-Encoding", "gzip, deflate" );
+			
+			if ( etag != null ){
+				
+				con.setRequestProperty( "If-None-Match", etag );
+			}
+			
+			if ( last_modified != null ){
+				
+				con.setRequestProperty( "If-Modified-Since", last_modified );
+			}
+			
+			int	response = con.getResponseCode();
+			
+			if ( response != HttpURLConnection.HTTP_OK ){
+				
+					// consume whatever error page came back so the connection can go back in the pool
+				
+				drain( con.getErrorStream());
+				
+				if ( response == HttpURLConnection.HTTP_NOT_MODIFIED ){
+					
+					return( new Response( response, null, etag, last_modified ));
+				}
+				
+				if ( isRedirect( response )){
+					
+					String location = con.getHeaderField( "Location" );
+					
+					if ( location != null ){
+						
+						Response result = new Response( response, null, null, null );
+						
+						result.redirect = new URL( url, location );
+						
+						return( result );
+					}
+				}
+				
+				throw( new IOException( "HTTP response " + response + " (" + con.getResponseMessage() + ") for " + url ));
+			}
+			
+			String encoding = con.getContentEncoding();
+			
+			InputStream is = con.getInputStream();
+			
+			try{
+				byte[] body;
+				
+				if ( encoding == null || encoding.equalsIgnoreCase( "identity" )){
+					
+					body = readBody( is, con.getContentLengthLong(), max_body, reader );
+					
+				}else{
+					
+						// the declared length is of the encoded body so can't be used for presizing, the
+						// decoded size is still capped to guard against decompression bombs
+					
+					InputStream decoder = decode( is, encoding );
+					
+					try{
+						body = readBody( decoder, -1, max_body, reader );
+						
+							// make sure any trailer the decoder didn't need is consumed
+						
+						drain( is );
+						
+					}finally{
+						
+							// releases the inflater's native memory
+						
+						decoder.close();
+					}
+				}
+				
+				return( new Response( response, body, con.getHeaderField( "ETag" ), con.getHeaderField( "Last-Modified" )));
+				
+			}finally{
+				
+				is.close();
+			}
+		}finally{
+			
+			releaseSlot( slot_key );
+		}
+	}
+	
+	public void
+	download(
+		URL			url,
+		File		target,
+		long		max_body )
+		
+		throws IOException
+	{
+		byte[] body = get( url, null, null, max_body ).getBody();
+		
+			// write via a temporary file so that a failure never leaves a partial file that then
+			// looks like a completed download
+		
+		File temp = new File( target.getParentFile(), target.getName() + ".tmp" );
+		
+		FileOutputStream os = new FileOutputStream( temp );
+		
+		try{
+			os.write( body );
+			
+		}finally{
+			
+			os.close();
+		}
+		
+		target.delete();
+		
+		if ( !temp.renameTo( target )){
+			
+			temp.delete();
+			
+			throw( new IOException( "Failed to rename " + temp + " to " + target ));
+		}
+	}
+	
+	private boolean
+	isDirect(
+		URL		url )
+	{
+		String protocol = url.getProtocol().toLowerCase( Locale.US );
+		
+		if ( !( protocol.equals( "http" ) || protocol.equals( "https" ))){
+			
+			return( false );
+		}
+		
+		return( AENetworkClassifier.categoriseAddress( url.getHost()) == AENetworkClassifier.AT_PUBLIC );
+	}
+	
+	private static boolean
+	isRedirect(
+		int		response )
+	{
+		return( response == HttpURLConnection.HTTP_MOVED_PERM ||
+				response == HttpURLConnection.HTTP_MOVED_TEMP ||
+				response == HttpURLConnection.HTTP_SEE_OTHER ||
+				response == 307 || response == 308 );
+	}
+	
+	private static String
+	getSlotKey(
+		URL		url )
+	{
+		return( url.getProtocol().toLowerCase( Locale.US ) + "://" + url.getHost().toLowerCase( Locale.US ) + ":" + url.getPort());
+	}
+	
+	private AESemaphore
+	reserveSlot(
+		String		key )
+	{
+		HostSlot slot;
+		
+		synchronized( host_slots ){
+			
+			slot = host_slots.get( key );
+			
+			if ( slot == null ){
+				
+				slot = new HostSlot();
+				
+				host_slots.put( key, slot );
+			}
+			
+			slot.users++;
+		}
+		
+		slot.sem.reserve();
+		
+		return( slot.sem );
+	}
+	
+	private void
+	releaseSlot(
+		String		key )
+	{
+		synchronized( host_slots ){
+			
+			HostSlot slot = host_slots.get( key );
+			
+			slot.sem.release();
+			
+			if ( --slot.users == 0 ){
+				
+				host_slots.remove( key );
+			}
+		}
+	}
+	
+	private InputStream
+	decode(
+		InputStream		is,
+		String			encoding )
+		
+		throws IOException
+	{
+		encoding = encoding.trim().toLowerCase( Locale.US );
+		
+		if ( encoding.equals( "gzip" ) || encoding.equals( "x-gzip" )){
+			
+			return( new GZIPInputStream( is ));
+			
+		}else if ( encoding.equals( "deflate" )){
+			
+				// should be zlib wrapped but some servers send raw deflate data, a zlib header
+				// always has a compression method of 8 in the low nibble of the first byte
+			
+			BufferedInputStream bis = new BufferedInputStream( is );
+			
+			bis.mark( 1 );
+			
+			int	first = bis.read();
+			
+			bis.reset();
+			
+			final Inflater inflater = new Inflater( first == -1 || ( first & 0x0f ) != 8 );
+			
+				// a supplied inflater isn't ended by close()
+			
+			return( 
+				new InflaterInputStream( bis, inflater )
+				{
+					@Override
+					public void
+					close()
+					
+						throws IOException
+					{
+						try{
+							super.close();
+							
+						}finally{
+							
+							inflater.end();
+						}
+					}
+				});
+			
+		}else{
+			
+			throw( new IOException( "Unsupported content encoding '" + encoding + "'" ));
+		}
+	}
+	
+		// returns null if the body was handed to a reader
+	
+	private static byte[]
+	readBody(
+		InputStream		is,
+		long			content_length,
+		long			max_body,
+		BodyReader		reader )
+		
+		throws IOException
+	{
+		if ( max_body > 0 && content_length > max_body ){
+			
+			throw( new IOException( "Response too large (" + content_length + " bytes)" ));
+		}
+		
+		if ( reader != null ){
+			
+			LimitedInputStream	lis = new LimitedInputStream( is, max_body );
+			
+			reader.read( lis );
+			
+				// leave the connection reusable if the remainder is small
+			
+			lis.drain();
+			
+			return( null );
+		}
+		
+		ByteArrayOutputStream baos = new ByteArrayOutputStream( content_length>0?(int)content_length:16*1024 );
+		
+		byte[] buffer = new byte[16*1024];
+		
+		while( true ){
+			
+			int	len = is.read( buffer );
+			
+			if ( len < 0 ){
+				
+				break;
+			}
+			
+			if ( max_body > 0 && baos.size() + len > max_body ){
+				
+				throw( new IOException( "Response too large (exceeds " + max_body + " bytes)" ));
+			}
+			
+			baos.write( buffer, 0, len );
+		}
+		
+		return( baos.toByteArray());
+	}
+	
+	private static void
+	drain(
+		InputStream		is )
+	{
+		if ( is == null ){
+			
+			return;
+		}
+		
+		try{
+			byte[] buffer = new byte[4096];
+			
+			int	total = 0;
+			
+			while( total < DRAIN_LIMIT ){
+				
+				int	len = is.read( buffer );
+				
+				if ( len < 0 ){
+					
+					break;
+				}
+				
+				total += len;
+			}
+		}catch( Throwable e ){
+			
+		}finally{
+			
+			try{
+				is.close();
+				
+			}catch( Throwable e ){
+			}
+		}
+	}
+	
+	public interface
+	BodyReader
+	{
+		public void
+		read(
+			InputStream		is )
+		
+			throws IOException;
+	}
+	
+	private static class
+	LimitedInputStream
+		extends FilterInputStream
+	{
+		private final long	limit;
+		
+		private long		total;
+		
+		private
+		LimitedInputStream(
+			InputStream		is,
+			long			_limit )
+		{
+			super( is );
+			
+			limit	= _limit;
+		}
+		
+		@Override
+		public int
+		read()
+		
+			throws IOException
+		{
+			count( 0 );
+			
+			int	b = super.read();
+			
+			if ( b >= 0 ){
+				
+				count( 1 );
+			}
+			
+			return( b );
+		}
+		
+		@Override
+		public int
+		read(
+			byte[]	buffer,
+			int		offset,
+			int		length )
+		
+			throws IOException
+		{
+			count( 0 );
+			
+			int	len = super.read( buffer, offset, length );
+			
+			if ( len > 0 ){
+				
+				count( len );
+			}
+			
+			return( len );
+		}
+		
+		@Override
+		public long
+		skip(
+			long	n )
+		
+			throws IOException
+		{
+			count( 0 );
+			
+			long	len = super.skip( n );
+			
+			if ( len > 0 ){
+				
+				count( len );
+			}
+			
+			return( len );
+		}
+		
+		@Override
+		public boolean
+		markSupported()
+		{
+			return( false );
+		}
+		
+			// the underlying stream is closed by the client once the reader is done
+		
+		@Override
+		public void
+		close()
+		{
+		}
+		
+			// once the limit is exceeded every read fails, whatever the reader did with the first failure
+		
+		private void
+		count(
+			long	len )
+		
+			throws IOException
+		{
+			total += len;
+			
+			if ( limit > 0 && total > limit ){
+				
+				throw( new IOException( "Response too large (exceeds " + limit + " bytes)" ));
+			}
+		}
+		
+		private void
+		drain()
+		
+			throws IOException
+		{
+			byte[] buffer = new byte[4096];
+			
+			long	drained = 0;
+			
+			while( drained < DRAIN_LIMIT ){
+				
+				int	len = read( buffer, 0, buffer.length );
+				
+				if ( len < 0 ){
+					
+					break;
+				}
+				
+				drained += len;
+			}
+		}
+	}
+	
+	private static class
+	HostSlot
+	{
+		private final AESemaphore	sem = new AESemaphore( "RSSToChat:http", MAX_CONNECTIONS_PER_HOST );
+		
+		private int		users;
+	}
+	
+	public static class
+	Response
+	{
+		private final int		code;
+		private final byte[]	body;
+		private final String	etag;
+		private final String	last_modified;
+		
+		private URL				redirect;
+		
+		private
+		Response(
+			int			_code,
+			byte[]		_body,
+			String		_etag,
+			String		_last_modified )
+		{
+			code			= _code;
+			body			= _body;
+			etag			= _etag;
+			last_modified	= _last_modified;
+		}
+		
+		public boolean
+		isNotModified()
+		{
+			return( code == HttpURLConnection.HTTP_NOT_MODIFIED );
+		}
+		
+		public byte[]
+		getBody()
+		{
+			return( body );
+		}
+		
+		public String
+		getETag()
+		{
+			return( etag );
+		}
+		
+		public String
+		getLastModified()
+		{
+			return( last_modified );
+		}
+	}
+}
@@ -0,0 +1,228 @@
+/*
+ * Copyright (C) Bigly Software, Inc, All Rights Reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307, USA.
+ */
+
+
+package com.azureus.plugins.rsstochat;
+
+import java.io.*;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+	// append-only log of history additions kept alongside the history snapshot. The file is a header
+	// (magic, version) followed by fixed size records of (id, item time, minute added). A torn final
+	// record from an interrupted write is ignored on read and overwritten by the next append.
+	// Replaying records that are already in the snapshot is harmless so the snapshot can be written
+	// before the records it covers are removed from here without any coordination on recovery
+
+public class
+HistoryJournal
+{
+	private static final int	MAGIC			= 0x52534a4c;	// "RSJL"
+	private static final int	VERSION			= 1;
+	
+	private static final int	HEADER_SIZE		= 8;
+	private static final int	RECORD_SIZE		= 20;
+	
+	public static final int		FIELDS			= 3;	// id, item_time, added_mins
+	
+	private final File		file;
+	
+	public
+	HistoryJournal(
+		File		_file )
+	{
+		file	= _file;
+	}
+	
+		// returns the complete records as id/item time/minute added triples
+	
+	public synchronized long[]
+	read()
+		
+		throws IOException
+	{
+		if ( !file.exists()){
+			
+			return( new long[0] );
+		}
+		
+		DataInputStream dis = new DataInputStream( new BufferedInputStream( new FileInputStream( file )));
+		
+		try{
+			long	length = file.length();
+			
+			if ( length < HEADER_SIZE || dis.readInt() != MAGIC || dis.readInt() != VERSION ){
+				
+				throw( new IOException( "Invalid history journal " + file ));
+			}
+			
+			int	num = (int)(( length - HEADER_SIZE ) / RECORD_SIZE );
+			
+			long[]	result = new long[num*FIELDS];
+			
+			for ( int i=0;i<result.length;i+=FIELDS ){
+				
+				result[i] 	= dis.readLong();
+				result[i+1]	= dis.readLong();
+				result[i+2]	= dis.readInt();
+			}
+			
+			return( result );
+			
+		}finally{
+			
+			dis.close();
+		}
+	}
+	
+	public synchronized void
+	append(
+		long[]		records,
+		int			num_records )
+		
+		throws IOException
+	{
+		if ( num_records == 0 ){
+			
+			return;
+		}
+		
+		RandomAccessFile raf = new RandomAccessFile( file, "rw" );
+		
+		try{
+			long	length = raf.length();
+			
+			long	pos;
+			
+			if ( length < HEADER_SIZE ){
+				
+				pos = 0;
+				
+			}else{
+				
+					// drop any torn record
+				
+				pos = HEADER_SIZE + (( length - HEADER_SIZE ) / RECORD_SIZE ) * RECORD_SIZE;
+			}
+			
+			ByteArrayOutputStream	baos = new ByteArrayOutputStream(( pos==0?HEADER_SIZE:0 ) + num_records*RECORD_SIZE );
+			
+			DataOutputStream dos = new DataOutputStream( baos );
+			
+			if ( pos == 0 ){
+				
+				dos.writeInt( MAGIC );
+				dos.writeInt( VERSION );
+			}
+			
+			writeRecords( dos, records, 0, num_records );
+			
+			raf.seek( pos );
+			
+			raf.write( baos.toByteArray());
+			
+			raf.setLength( pos + baos.size());
+			
+		}finally{
+			
+			raf.close();
+		}
+	}
+	
+		// removes the first 'num_records' records, called once they are covered by a snapshot
+	
+	public synchronized void
+	removeLeading(
+		long		num_records )
+		
+		throws IOException
+	{
+		long[]	records = read();
+		
+		int	total		= records.length/FIELDS;
+		int	remaining	= (int)Math.max( 0, total - num_records );
+		
+		write( records, total-remaining, remaining );
+	}
+	
+	private void
+	write(
+		long[]		records,
+		int			from_record,
+		int			num_records )
+	
+		throws IOException
+	{
+		File temp = new File( file.getParentFile(), file.getName() + ".tmp" );
+		
+		DataOutputStream dos = new DataOutputStream( new BufferedOutputStream( new FileOutputStream( temp )));
+		
+		try{
+			dos.writeInt( MAGIC );
+			dos.writeInt( VERSION );
+			
+			writeRecords( dos, records, from_record, num_records );
+			
+		}finally{
+			
+			dos.close();
+		}
+		
+			// the journal must never be missing, it holds everything published since the last snapshot.
+			// A failed move leaves it as it was
+		
+		try{
+			try{
+				Files.move( temp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING );
+				
+			}catch( AtomicMoveNotSupportedException e ){
+				
+				Files.move( temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING );
+			}
+		}catch( IOException e ){
+			
+			temp.delete();
+			
+			throw( e );
+		}
+	}
+	
+	private static void
+	writeRecords(
+		DataOutputStream	dos,
+		long[]				records,
+		int					from_record,
+		int					num_records )
+	
+		throws IOException
+	{
+		for ( int i=from_record*FIELDS;i<(from_record+num_records)*FIELDS;i+=FIELDS ){
+			
+			dos.writeLong( records[i] );
+			dos.writeLong( records[i+1] );
+			dos.writeInt((int)records[i+2] );
+		}
+	}
+	
+	public synchronized void
+	delete()
+	{
+		file.delete();
+	}
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright (C) Bigly Software, Inc, All Rights Reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307, USA.
+ */
+
+
+package com.azureus.plugins.rsstochat;
+
+	// persistence of the ids a mapping has published. Implementations are only used by one
+	// thread at a time
+
+public interface
+HistoryStore
+{
+	public boolean
+	contains(
+		long		id );
+	
+	public void
+	add(
+		long		id,
+		long		item_time,
+		int			added_mins );
+	
+		// removes entries added before the given time, returns the number removed
+	
+	public int
+	expire(
+		int			min_added_mins );
+	
+	public long
+	getLatestPublish();
+	
+	public int
+	size();
+	
+		// the most recently added id, only meaningful if size() > 0
+	
+	public long
+	getNewestId();
+	
+		// returns the ids oldest first
+	
+	public long[]
+	getIds();
+	
+		// makes additions durable
+	
+	public void
+	save();
+	
+	public void
+	close();
+}
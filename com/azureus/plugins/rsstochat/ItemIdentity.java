@@ -0,0 +1,215 @@
+/*
+ * Copyright (C) Bigly Software, Inc, All Rights Reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307, USA.
+ */
+
+
+package com.azureus.plugins.rsstochat;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+	// derives the history key for a feed item from its magnet. If the magnet has a btih then the key
+	// is the first 8 bytes of the info hash, taken straight from the hex or base32 text. Otherwise the
+	// parameters that don't vary between fetches of the same item are sorted and hashed, so feeds
+	// that reorder parameters or rotate webseeds/trackers still produce the same key
+
+public class
+ItemIdentity
+{
+	private static final String	BTIH_PREFIX	= "urn:btih:";
+	
+		// parameters that vary between fetches of the same item
+	
+	private static final String[]	volatile_params = { "ws", "tr", "as", "x.pe" };
+	
+	public static long
+	getMagnetKey(
+		String		magnet )
+	{
+		int	pos = magnet.indexOf( '?' );
+		
+		int	len = magnet.length();
+		
+		List<String>	params = null;
+		
+		while( pos < len ){
+			
+			int	start = pos + 1;
+			
+			int	end = magnet.indexOf( '&', start );
+			
+			if ( end == -1 ){
+				
+				end = len;
+			}
+			
+			pos = end;
+			
+			int	eq = magnet.indexOf( '=', start );
+			
+			if ( eq == -1 || eq > end ){
+				
+				eq = end;
+			}
+			
+			if ( eq == start ){
+				
+				continue;
+			}
+			
+			if ( 	eq - start == 2 && magnet.regionMatches( true, start, "xt", 0, 2 ) &&
+					magnet.regionMatches( true, eq+1, BTIH_PREFIX, 0, BTIH_PREFIX.length())){
+				
+				long	key = decodeHashPrefix( magnet, eq + 1 + BTIH_PREFIX.length(), end );
+				
+				if ( key != 0 ){
+					
+					return( key );
+				}
+			}
+			
+			if ( magnet.charAt( start ) == '_' || isVolatile( magnet, start, eq )){
+				
+				continue;
+			}
+			
+			if ( params == null ){
+				
+				params = new ArrayList<String>();
+			}
+			
+			params.add( magnet.substring( start, eq ).toLowerCase( Locale.US ) + magnet.substring( eq, end ));
+		}
+		
+		if ( params == null ){
+			
+			return( FastHash.hash64( "" ));
+		}
+		
+		Collections.sort( params );
+		
+		StringBuilder	sb = new StringBuilder( magnet.length());
+		
+		for ( String param: params ){
+			
+			if ( sb.length() > 0 ){
+				
+				sb.append( '&' );
+			}
+			
+			sb.append( param );
+		}
+		
+		return( FastHash.hash64( sb ));
+	}
+	
+	private static boolean
+	isVolatile(
+		String		magnet,
+		int			start,
+		int			end )
+	{
+		int	len = end - start;
+		
+		for ( String param: volatile_params ){
+			
+			if ( param.length() == len && magnet.regionMatches( true, start, param, 0, len )){
+				
+				return( true );
+			}
+		}
+		
+		return( false );
+	}
+	
+		// returns the first 8 bytes of a 40 char hex or 32 char base32 hash, 0 if it isn't one
+	
+	private static long
+	decodeHashPrefix(
+		String		str,
+		int			start,
+		int			end )
+	{
+		int	len = end - start;
+		
+		long	result = 0;
+		
+		if ( len == 40 ){
+			
+			for ( int i=start;i<end;i++ ){
+				
+				int	v = Character.digit( str.charAt( i ), 16 );
+				
+				if ( v == -1 ){
+					
+					return( 0 );
+				}
+				
+				if ( i < start + 16 ){
+					
+					result = ( result << 4 ) | v;
+				}
+			}
+		}else if ( len == 32 ){
+			
+				// 13 chars give 65 bits, the last one only contributes its top 4
+			
+			for ( int i=start;i<end;i++ ){
+				
+				int	v = base32Value( str.charAt( i ));
+				
+				if ( v == -1 ){
+					
+					return( 0 );
+				}
+				
+				if ( i < start + 12 ){
+					
+					result = ( result << 5 ) | v;
+					
+				}else if ( i == start + 12 ){
+					
+					result = ( result << 4 ) | ( v >>> 1 );
+				}
+			}
+		}
+		
+		return( result );
+	}
+	
+	private static int
+	base32Value(
+		char	c )
+	{
+		if ( c >= 'A' && c <= 'Z' ){
+			
+			return( c - 'A' );
+			
+		}else if ( c >= 'a' && c <= 'z' ){
+			
+			return( c - 'a' );
+			
+		}else if ( c >= '2' && c <= '7' ){
+			
+			return( c - '2' + 26 );
+		}
+		
+		return( -1 );
+	}
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright (C) Bigly Software, Inc, All Rights Reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307, USA.
+ */
+
+
+package com.azureus.plugins.rsstochat;
+
+import java.net.URL;
+
+	// classifies feed links without constructing URLs. Most guids aren't URLs at all and using
+	// 'new URL' as the test costs an exception (and its stack trace) for each of them. Nothing
+	// here throws or allocates, apart from normalise which is only for values already known to be links
+
+public class
+LinkClassifier
+{
+	public static final int	LINK_NONE		= 0;
+	public static final int	LINK_DOWNLOAD	= 1;
+	public static final int	LINK_DETAILS	= 2;
+	
+	public static final String	TORRENT_MIME_TYPE	= "application/x-bittorrent";
+	
+		// the schemes that the JRE and the client have URL handlers for and that 'new URL' therefore
+		// accepted. Anything else is no longer treated as a link
+	
+	private static final String[]	url_schemes 		= {
+			"http", "https", "ftp", "file", "jar", "mailto",
+			"magnet", "maggot", "bc", "bctp", "dht", "azplug", "chat", "vuze", "biglybt", "tor" };
+	
+	private static final String[]	download_schemes	= { "magnet", "bc", "bctp", "dht" };
+	
+	private static final String		TORRENT_EXT			= ".torrent";
+	
+	public static int
+	classify(
+		String		value )
+	{
+		if ( !isURL( value )){
+			
+			return( LINK_NONE );
+		}
+		
+		if ( endsWithIgnoreCase( value, TORRENT_EXT ) || hasScheme( value, download_schemes )){
+			
+			return( LINK_DOWNLOAD );
+		}
+		
+		return( LINK_DETAILS );
+	}
+	
+	public static boolean
+	isURL(
+		String		value )
+	{
+		return( value != null && hasScheme( value, url_schemes ));
+	}
+	
+		// the canonical form of a link as 'new URL( value ).toExternalForm()' gives it, null if
+		// the URL can't be constructed after all
+	
+	public static String
+	normalise(
+		String		value )
+	{
+		try{
+			return( new URL( value ).toExternalForm());
+			
+		}catch( Throwable e ){
+			
+			return( null );
+		}
+	}
+	
+	public static boolean
+	isMagnet(
+		String		value )
+	{
+		return( value != null && value.regionMatches( true, 0, "magnet:", 0, 7 ));
+	}
+	
+	public static boolean
+	isTorrentType(
+		String		type )
+	{
+		return( type != null && type.equalsIgnoreCase( TORRENT_MIME_TYPE ));
+	}
+	
+	public static boolean
+	containsTorrentExtension(
+		String		value )
+	{
+		int	max = value.length() - TORRENT_EXT.length();
+		
+		for ( int i=0;i<=max;i++ ){
+			
+			if ( value.charAt( i ) == '.' && value.regionMatches( true, i, TORRENT_EXT, 0, TORRENT_EXT.length())){
+				
+				return( true );
+			}
+		}
+		
+		return( false );
+	}
+	
+	private static boolean
+	endsWithIgnoreCase(
+		String		value,
+		String		suffix )
+	{
+		int	len = suffix.length();
+		
+		return( value.regionMatches( true, value.length() - len, suffix, 0, len ));
+	}
+	
+	private static boolean
+	hasScheme(
+		String		value,
+		String[]	schemes )
+	{
+		int	pos = value.indexOf( ':' );
+		
+		if ( pos <= 0 ){
+			
+			return( false );
+		}
+		
+		for ( String scheme: schemes ){
+			
+			if ( scheme.length() == pos && value.regionMatches( true, 0, scheme, 0, pos )){
+				
+				return( true );
+			}
+		}
+		
+		return( false );
+	}
+}
@@ -0,0 +1,353 @@
+/*
+ * Copyright (C) Bigly Software, Inc, All Rights Reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307, USA.
+ */
+
+
+package com.azureus.plugins.rsstochat;
+
+	// set of 64 bit keys that remembers insertion order and evicts the oldest entry once
+	// the capacity is reached. Keys live in an open-addressing (linear probing) table, order
+	// in a ring buffer, both grow on demand up to what the capacity requires. Each entry also
+	// records when it was added (in minutes) so that entries can be expired by age. Not thread safe
+
+public class
+LongHistorySet
+{
+	private static final int	INITIAL_SIZE	= 16;
+	
+	private final int	capacity;
+	
+	private long[]		table;
+	private boolean		has_zero;		// 0 marks an empty slot so is tracked separately
+	
+	private long[]		ring;
+	private int[]		ring_added;
+	private int			ring_start;
+	
+	private int			size;
+	
+	public
+	LongHistorySet(
+		int		_capacity )
+	{
+		capacity	= Math.max( 1, _capacity );
+		
+		table		= new long[INITIAL_SIZE*2];
+		ring		= new long[Math.min( INITIAL_SIZE, capacity )];
+		ring_added	= new int[ring.length];
+	}
+	
+	public int
+	size()
+	{
+		return( size );
+	}
+	
+	public boolean
+	contains(
+		long		key )
+	{
+		if ( key == 0 ){
+			
+			return( has_zero );
+		}
+		
+		long[]	t		= table;
+		int		mask	= t.length - 1;
+		
+		int	pos = hash( key ) & mask;
+		
+		while( true ){
+			
+			long	k = t[pos];
+			
+			if ( k == key ){
+				
+				return( true );
+				
+			}else if ( k == 0 ){
+				
+				return( false );
+			}
+			
+			pos = ( pos + 1 ) & mask;
+		}
+	}
+	
+		// returns false if already present, in which case its position in the order is unchanged
+	
+	public boolean
+	add(
+		long		key,
+		int			added_mins )
+	{
+		if ( contains( key )){
+			
+			return( false );
+		}
+		
+		if ( size == capacity ){
+			
+			removeKey( ring[ring_start] );
+			
+			ring[ring_start] 		= key;
+			ring_added[ring_start]	= added_mins;
+			
+			ring_start = ( ring_start + 1 ) % ring.length;
+			
+		}else{
+			
+			if ( size == ring.length ){
+				
+				growRing();
+			}
+			
+			int	pos = ( ring_start + size ) % ring.length;
+			
+			ring[pos] 		= key;
+			ring_added[pos]	= added_mins;
+			
+			size++;
+			
+			if ( size*2 > table.length ){
+				
+				rehash( table.length*2 );
+			}
+		}
+		
+		insertKey( key );
+		
+		return( true );
+	}
+	
+		// removes entries added before 'min_added_mins', returns the number removed. Entries are
+		// added in time order so these are all at the head of the ring
+	
+	public int
+	expire(
+		int		min_added_mins )
+	{
+		int	removed = 0;
+		
+		while( size > 0 && ring_added[ring_start] < min_added_mins ){
+			
+			removeKey( ring[ring_start] );
+			
+			ring_start = ( ring_start + 1 ) % ring.length;
+			
+			size--;
+			
+			removed++;
+		}
+		
+		return( removed );
+	}
+	
+	public long
+	getNewest()
+	{
+		return( size==0?0:ring[( ring_start + size - 1 ) % ring.length] );
+	}
+	
+		// oldest first
+	
+	public long[]
+	toArray()
+	{
+		long[]	result = new long[size];
+		
+		for ( int i=0;i<size;i++ ){
+			
+			result[i] = ring[( ring_start + i ) % ring.length];
+		}
+		
+		return( result );
+	}
+	
+		// times the entries returned by toArray were added
+	
+	public int[]
+	getAddedTimes()
+	{
+		int[]	result = new int[size];
+		
+		for ( int i=0;i<size;i++ ){
+			
+			result[i] = ring_added[( ring_start + i ) % ring.length];
+		}
+		
+		return( result );
+	}
+	
+	public static long
+	toLong(
+		byte[]		bytes )
+	{
+		long	result = 0;
+		
+		for ( int i=0;i<8;i++ ){
+			
+			result = ( result << 8 ) | ( bytes[i] & 0xff );
+		}
+		
+		return( result );
+	}
+	
+	public static byte[]
+	toBytes(
+		long		key )
+	{
+		byte[]	result = new byte[8];
+		
+		for ( int i=7;i>=0;i-- ){
+			
+			result[i] = (byte)key;
+			
+			key >>>= 8;
+		}
+		
+		return( result );
+	}
+	
+	static int
+	hash(
+		long		key )
+	{
+			// keys are mostly hash prefixes already but mix anyway in case they aren't
+		
+		key ^= key >>> 33;
+		key *= 0xff51afd7ed558ccdL;
+		key ^= key >>> 33;
+		
+		return((int)key );
+	}
+	
+	private void
+	insertKey(
+		long		key )
+	{
+		if ( key == 0 ){
+			
+			has_zero = true;
+			
+			return;
+		}
+		
+		int	mask = table.length - 1;
+		
+		int	pos = hash( key ) & mask;
+		
+		while( table[pos] != 0 ){
+			
+			pos = ( pos + 1 ) & mask;
+		}
+		
+		table[pos] = key;
+	}
+	
+	private void
+	removeKey(
+		long		key )
+	{
+		if ( key == 0 ){
+			
+			has_zero = false;
+			
+			return;
+		}
+		
+		int	mask = table.length - 1;
+		
+		int	pos = hash( key ) & mask;
+		
+		while( table[pos] != key ){
+			
+			if ( table[pos] == 0 ){
+				
+				return;
+			}
+			
+			pos = ( pos + 1 ) & mask;
+		}
+		
+			// backward shift deletion so that no tombstones are needed
+		
+		int	gap = pos;
+		
+		pos = ( pos + 1 ) & mask;
+		
+		while( true ){
+			
+			long	k = table[pos];
+			
+			if ( k == 0 ){
+				
+				break;
+			}
+			
+			int	home = hash( k ) & mask;
+			
+				// entry can fill the gap if its home slot isn't cyclically in (gap,pos]
+			
+			if ((( pos - home ) & mask ) >= (( pos - gap ) & mask )){
+				
+				table[gap] 	= k;
+				gap			= pos;
+			}
+			
+			pos = ( pos + 1 ) & mask;
+		}
+		
+		table[gap] = 0;
+	}
+	
+	private void
+	rehash(
+		int		new_size )
+	{
+		long[]	old = table;
+		
+		table = new long[new_size];
+		
+		for ( long k: old ){
+			
+			if ( k != 0 ){
+				
+				insertKey( k );
+			}
+		}
+	}
+	
+	private void
+	growRing()
+	{
+		long[]	new_ring 		= new long[Math.min( ring.length*2, capacity )];
+		int[]	new_ring_added	= new int[new_ring.length];
+		
+		for ( int i=0;i<size;i++ ){
+			
+			int	pos = ( ring_start + i ) % ring.length;
+			
+			new_ring[i] 		= ring[pos];
+			new_ring_added[i]	= ring_added[pos];
+		}
+		
+		ring		= new_ring;
+		ring_added	= new_ring_added;
+		ring_start	= 0;
+	}
+}
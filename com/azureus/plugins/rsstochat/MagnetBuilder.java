@@ -0,0 +1,636 @@
+/*
+ * Copyright (C) Bigly Software, Inc, All Rights Reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307, USA.
+ */
+
+
+package com.azureus.plugins.rsstochat;
+
+import java.net.URL;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.biglybt.core.util.AENetworkClassifier;
+import com.biglybt.core.util.DisplayFormatters;
+import com.biglybt.core.util.UrlUtils;
+
+	// builds the magnet messages posted to chats. The head (the magnet proper) identifies the item,
+	// the tail adds display parameters and the presentation that chat clients show in place of the
+	// link. Both append into a single buffer, an input magnet is scanned once in place rather than
+	// split up and the remaining message space is tracked as the tail is appended
+
+public class
+MagnetBuilder
+{
+	private static final int	MAX_CDP_LINK	= 140;
+	
+	private static final String	TAIL_MIN		= "[[$dn]]";
+	
+	private static final int	MAX_CACHED_HOSTS		= 1024;
+	private static final int	MAX_CACHED_SELECTIONS	= 256;
+	
+		// host -> whether it's public. Feeds repeat the same few trackers on every item
+	
+	private static final Map<String,Boolean>	host_cache = 
+		new LinkedHashMap<String,Boolean>( MAX_CACHED_HOSTS, 0.75f, true )
+		{
+			@Override
+			protected boolean
+			removeEldestEntry(
+				Map.Entry<String,Boolean>	eldest )
+			{
+				return( size() > MAX_CACHED_HOSTS );
+			}
+		};
+	
+	private static final ThreadLocal<SimpleDateFormat>	date_format =
+		new ThreadLocal<SimpleDateFormat>()
+		{
+			@Override
+			protected SimpleDateFormat
+			initialValue()
+			{
+				return( new SimpleDateFormat( "yyyy/MM/dd" ));
+			}
+		};
+	
+	public static String
+	buildHead(
+		TrackerSelector		selector,
+		String				dl_link,
+		String				cdp_link,
+		String				hash,
+		String				title )
+	{
+		if ( dl_link != null && LinkClassifier.isMagnet( dl_link )){
+			
+				// could be a load of stuff in an existing magnet that will blow limits
+			
+			int	len = dl_link.length();
+			
+				// trailing separators produce nothing, as with String.split
+			
+			while( len > 0 && dl_link.charAt( len-1 ) == '&' ){
+				
+				len--;
+			}
+			
+				// first pass picks out the trackers, the selection for them is cached
+			
+			StringBuilder	tracker_key = null;
+			
+			int	pos = 0;
+			
+			while( pos < len ){
+				
+				int	end = getParamEnd( dl_link, pos, len );
+				
+				int	value_start = getValueStart( dl_link, pos, end );
+				
+				if ( value_start != -1 && value_start - pos == 3 && dl_link.regionMatches( true, pos, "tr", 0, 2 )){
+					
+					if ( tracker_key == null ){
+						
+						tracker_key = new StringBuilder( 256 );
+						
+					}else{
+						
+						tracker_key.append( '&' );
+					}
+					
+					tracker_key.append( dl_link, value_start, getValueEnd( dl_link, value_start, end ));
+				}
+				
+				pos = end + 1;
+			}
+			
+			TrackerSelection	selection = tracker_key==null?null:selector.getSelection( tracker_key.toString());
+			
+			StringBuilder	sb = new StringBuilder( dl_link.length());
+			
+			int	tracker_index = 0;
+			
+			pos = 0;
+			
+			while( pos < len ){
+				
+				int	end = getParamEnd( dl_link, pos, len );
+				
+				int	start = pos;
+				
+				pos = end + 1;
+				
+					// only name=value params with a single '=' are examined
+				
+				int	value_start = getValueStart( dl_link, start, end );
+				
+				if ( value_start != -1 ){
+					
+					int	name_len = value_start - 1 - start;
+					
+					if ( name_len == 2 && dl_link.regionMatches( true, start, "tr", 0, 2 )){
+						
+							// valid trackers are replaced by the selected one
+						
+						if ( selection.isValid( tracker_index++ )){
+							
+							continue;
+						}
+					}else if ( name_len == 2 && dl_link.regionMatches( true, start, "fl", 0, 2 )){
+						
+						if ( UrlUtils.decode( dl_link.substring( value_start, getValueEnd( dl_link, value_start, end ))).contains( "127.0.0.1" )){
+							
+							continue;
+						}
+					}
+				}
+				
+				if ( sb.length() > 0 ){
+					
+					sb.append( '&' );
+				}
+				
+				sb.append( dl_link, start, end );
+			}
+			
+			if ( selection != null && selection.getParam() != null ){
+				
+				if ( sb.length() > 0 ){
+					
+					sb.append( '&' );
+				}
+				
+				sb.append( selection.getParam());
+			}
+			
+			return( sb.toString());
+			
+		}else{
+			
+			StringBuilder	sb = new StringBuilder( 256 );
+			
+			sb.append( "magnet:?xt=urn:btih:" ).append( hash );
+			sb.append( "&dn=" ).append( encodeTitle( title, dl_link, cdp_link ));
+			
+			if ( dl_link != null && !dl_link.contains( "127.0.0.1" )){
+				
+				sb.append( "&fl=" ).append( UrlUtils.encode( dl_link ));
+			}
+			
+			return( sb.toString());
+		}
+	}
+	
+	public static String
+	buildTail(
+		String		head,
+		String		dl_link,
+		String		cdp_link,
+		String		title,
+		long		size,
+		long		time,
+		long		seeds,
+		long		leechers,
+		int			max_message_size )
+	{
+		StringBuilder	sb = new StringBuilder( max_message_size );
+		
+		sb.append( head );
+		
+		if ( !containsIgnoreCase( head, "&dn=" )){
+			
+			sb.append( "&dn=" ).append( encodeTitle( title, dl_link, cdp_link ));
+		}
+		
+		if ( size != -1 && !containsIgnoreCase( head, "&xl=" )){
+			
+			sb.append( "&xl=" ).append( size );
+		}
+		
+		if ( seeds != -1 ){
+			
+			sb.append( "&_s=" ).append( seeds );
+		}
+		
+		if ( leechers != -1 ){
+			
+			sb.append( "&_l=" ).append( leechers );
+		}
+		
+		if ( time > 0 ){
+			
+			sb.append( "&_d=" ).append( time );
+		}
+		
+		boolean	has_cdp = cdp_link != null && ( dl_link == null || !cdp_link.equals( dl_link ));
+		
+		if ( has_cdp ){
+			
+			String encoded_cdp = UrlUtils.encode( cdp_link );
+			
+			if ( encoded_cdp.length() > MAX_CDP_LINK ){
+				
+				has_cdp = false;
+				
+			}else{
+				
+				sb.append( "&_c=" ).append( encoded_cdp );
+			}
+		}
+		
+		int	length_rem = max_message_size - sb.length();
+		
+			// append the full tail and fall back to the minimal one if it doesn't fit
+		
+		int	tail_start = sb.length();
+		
+		sb.append( TAIL_MIN );
+		
+		int	info_start = sb.length();
+		
+		sb.append( " (" );
+		
+		if ( size > 0 ){
+			
+			sb.append( DisplayFormatters.formatByteCountToKiBEtc( size ));
+		}
+		
+		if ( time > 0 ){
+			
+			appendInfoSeparator( sb, info_start );
+			
+			sb.append( date_format.get().format( new Date( time )));
+		}
+		
+		if ( has_cdp ){
+			
+			appendInfoSeparator( sb, info_start );
+			
+			sb.append( "\"$_c[[details]]\"" );
+		}
+		
+		if ( sb.length() == info_start + 2 ){
+			
+			sb.setLength( info_start );
+			
+		}else{
+			
+			sb.append( ')' );
+		}
+		
+		if ( sb.length() - tail_start >= length_rem ){
+			
+			sb.setLength( tail_start );
+			
+			sb.append( TAIL_MIN );
+		}
+		
+		return( sb.toString());
+	}
+	
+	private static int
+	getParamEnd(
+		String		str,
+		int			pos,
+		int			len )
+	{
+		int	end = str.indexOf( '&', pos );
+		
+		return( end == -1 || end > len?len:end );
+	}
+	
+		// start of the value if the param is name=value with a single '=' (ignoring trailing ones, as
+		// with String.split), -1 otherwise
+	
+	private static int
+	getValueStart(
+		String		str,
+		int			start,
+		int			end )
+	{
+		int	value_end = getValueEnd( str, start, end );
+		
+		int	eq = str.indexOf( '=', start );
+		
+		if ( eq != -1 && eq < value_end && str.lastIndexOf( '=', value_end-1 ) == eq ){
+			
+			return( eq + 1 );
+		}
+		
+		return( -1 );
+	}
+	
+	private static int
+	getValueEnd(
+		String		str,
+		int			start,
+		int			end )
+	{
+		while( end > start && str.charAt( end-1 ) == '=' ){
+			
+			end--;
+		}
+		
+		return( end );
+	}
+	
+	private static boolean
+	isPublic(
+		String		host )
+	{
+		synchronized( host_cache ){
+			
+			Boolean	result = host_cache.get( host );
+			
+			if ( result != null ){
+				
+				return( result );
+			}
+		}
+		
+		boolean	result = AENetworkClassifier.categoriseAddress( host ) == AENetworkClassifier.AT_PUBLIC;
+		
+		synchronized( host_cache ){
+			
+			host_cache.put( host, result );
+		}
+		
+		return( result );
+	}
+	
+	private static void
+	appendInfoSeparator(
+		StringBuilder	sb,
+		int				info_start )
+	{
+		if ( sb.length() > info_start + 2 ){
+			
+			sb.append( ", " );
+		}
+	}
+	
+	private static boolean
+	containsIgnoreCase(
+		String		str,
+		String		target )
+	{
+		int	len = target.length();
+		int	max = str.length() - len;
+		
+		for ( int i=0;i<=max;i++ ){
+			
+			if ( str.regionMatches( true, i, target, 0, len )){
+				
+				return( true );
+			}
+		}
+		
+		return( false );
+	}
+	
+	public static String
+	encodeTitle(
+		String		title,
+		String		dl_link,
+		String		cdp_link )
+	{
+		if ( title.endsWith( "..." )){
+			
+			return( UrlUtils.encode( title ));
+		}
+		
+		int	baggage = (dl_link==null?0:getEncodedLength(dl_link)) + (cdp_link==null?0:getEncodedLength(cdp_link));
+		
+		int MAX_TITLE = 240 - (3*baggage)/5;	// 100->180, 200->120 ...
+		
+		MAX_TITLE = Math.min( Math.max( MAX_TITLE, 80 ), 180 );
+		
+		if ( getEncodedLength( title ) <= MAX_TITLE ){
+			
+			return( UrlUtils.encode( title ));
+		}
+		
+			// keep as many whole code points as fit with room for the "..."
+		
+		int	rem	= MAX_TITLE - 3;
+		int	pos	= 0;
+		
+		while( pos < title.length()){
+			
+			int	cp = title.codePointAt( pos );
+			
+			rem -= getEncodedLength( cp );
+			
+			if ( rem < 0 ){
+				
+				break;
+			}
+			
+			pos += Character.charCount( cp );
+		}
+		
+		return( UrlUtils.encode( title.substring( 0, pos )) + "..." );
+	}
+	
+		// length of UrlUtils.encode's output without encoding - unreserved chars are kept, everything
+		// else is %XX per UTF-8 byte (space included, as %20)
+	
+	private static int
+	getEncodedLength(
+		String		str )
+	{
+		int	result = 0;
+		
+		for ( int i=0;i<str.length(); ){
+			
+			int	cp = str.codePointAt( i );
+			
+			result += getEncodedLength( cp );
+			
+			i += Character.charCount( cp );
+		}
+		
+		return( result );
+	}
+	
+	private static int
+	getEncodedLength(
+		int		cp )
+	{
+		if (	( cp >= 'a' && cp <= 'z' ) || ( cp >= 'A' && cp <= 'Z' ) || ( cp >= '0' && cp <= '9' ) ||
+				cp == '.' || cp == '-' || cp == '*' || cp == '_' ){
+			
+			return( 1 );
+			
+		}else if ( cp < 0x80 ){
+			
+			return( 3 );
+			
+		}else if ( cp < 0x800 ){
+			
+			return( 6 );
+			
+		}else if ( cp >= Character.MIN_SURROGATE && cp <= Character.MAX_SURROGATE ){
+			
+				// unpaired surrogate, encoded as '?'
+			
+			return( 3 );
+			
+		}else if ( cp < 0x10000 ){
+			
+			return( 9 );
+		}
+		
+		return( 12 );
+	}
+	
+		// per-mapping choice of tracker for the trackers of an input magnet: the first one on the
+		// mapping's network, otherwise the first one. Keyed by the raw tr values in order
+	
+	public static class
+	TrackerSelector
+	{
+		private final boolean	is_public;
+		
+		private final Map<String,TrackerSelection>	selections = 
+			new LinkedHashMap<String,TrackerSelection>( 16, 0.75f, true )
+			{
+				@Override
+				protected boolean
+				removeEldestEntry(
+					Map.Entry<String,TrackerSelection>	eldest )
+				{
+					return( size() > MAX_CACHED_SELECTIONS );
+				}
+			};
+		
+		public
+		TrackerSelector(
+			boolean		_is_public )
+		{
+			is_public	= _is_public;
+		}
+		
+		private synchronized TrackerSelection
+		getSelection(
+			String		tracker_key )
+		{
+			TrackerSelection selection = selections.get( tracker_key );
+			
+			if ( selection == null ){
+				
+				selection = select( tracker_key );
+				
+				selections.put( tracker_key, selection );
+			}
+			
+			return( selection );
+		}
+		
+		private TrackerSelection
+		select(
+			String		tracker_key )
+		{
+			List<Boolean>	valid 		= new ArrayList<Boolean>();
+			URL				first		= null;
+			URL				selected	= null;
+			
+			int	pos = 0;
+			
+			while( pos <= tracker_key.length()){
+				
+				int	end = tracker_key.indexOf( '&', pos );
+				
+				if ( end == -1 ){
+					
+					end = tracker_key.length();
+				}
+				
+				URL	url = null;
+				
+				try{
+					url = new URL( UrlUtils.decode( tracker_key.substring( pos, end )));
+					
+				}catch( Throwable e ){
+				}
+				
+				valid.add( url != null );
+				
+				if ( url != null ){
+					
+					if ( first == null ){
+						
+						first = url;
+					}
+					
+					if ( selected == null && isPublic( url.getHost()) == is_public ){
+						
+						selected = url;
+					}
+				}
+				
+				pos = end + 1;
+			}
+			
+			if ( selected == null ){
+				
+				selected = first;
+			}
+			
+			boolean[]	valid_flags = new boolean[valid.size()];
+			
+			for ( int i=0;i<valid_flags.length;i++ ){
+				
+				valid_flags[i] = valid.get( i );
+			}
+			
+			return( new TrackerSelection( valid_flags, selected==null?null:( "tr=" + UrlUtils.encode( selected.toExternalForm()))));
+		}
+	}
+	
+	private static class
+	TrackerSelection
+	{
+		private final boolean[]	valid;
+		private final String	param;
+		
+		private
+		TrackerSelection(
+			boolean[]	_valid,
+			String		_param )
+		{
+			valid	= _valid;
+			param	= _param;
+		}
+		
+		private boolean
+		isValid(
+			int		index )
+		{
+			return( valid[index] );
+		}
+		
+		private String
+		getParam()
+		{
+			return( param );
+		}
+	}
+}
@@ -0,0 +1,709 @@
+/*
+ * Copyright (C) Bigly Software, Inc, All Rights Reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307, USA.
+ */
+
+
+package com.azureus.plugins.rsstochat;
+
+import java.io.*;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+	// history held in a memory mapped file so that very large histories cost neither heap nor
+	// load time and writes are left to the OS page cache. Layout is a fixed header, a ring of ids
+	// in insertion order, an open-addressing (linear probing) index of the same ids sized to
+	// twice the capacity and the minute each ring entry was added. Each modification touches a
+	// handful of slots; if the process dies part way through one the 'clean' flag won't have been set and the index is rebuilt from the ring
+	// on the next open
+
+public class
+MappedHistoryStore
+	implements HistoryStore
+{
+	public static final int	MAX_CAPACITY	= 16*1024*1024;
+	
+	private static final int	MAGIC			= 0x52534d48;	// "RSMH"
+	private static final int	VERSION			= 1;
+	
+	private static final int	HEADER_SIZE		= 64;
+	
+	private static final int	OFF_MAGIC		= 0;
+	private static final int	OFF_VERSION		= 4;
+	private static final int	OFF_CAPACITY	= 8;
+	private static final int	OFF_COUNT		= 12;
+	private static final int	OFF_HEAD		= 16;
+	private static final int	OFF_HAS_ZERO	= 20;
+	private static final int	OFF_CLEAN		= 24;
+	private static final int	OFF_LATEST		= 32;
+	
+	private final File		file;
+	private final int		capacity;
+	private final int		table_size;
+	
+	private final int		ring_offset;
+	private final int		index_offset;
+	private final int		added_offset;
+	
+	private MappedByteBuffer	buffer;
+	
+	private int			count;
+	private int			head;		// oldest entry once the ring is full, next free slot is (head+count)%capacity
+	private boolean		has_zero;
+	private long		latest_publish;
+	
+	public
+	MappedHistoryStore(
+		File		_file,
+		int			_capacity )
+		
+		throws IOException
+	{
+		file		= _file;
+		
+		int	cap = Math.max( 1, Math.min( _capacity, MAX_CAPACITY ));
+		
+		File	temp = new File( file.getParentFile(), file.getName() + ".tmp" );
+		
+		if ( !file.exists() && temp.exists()){
+			
+				// interrupted between removing the old file and renaming its replacement into place,
+				// the replacement is complete
+			
+			temp.renameTo( file );
+		}
+		
+		temp.delete();
+		
+		if ( file.exists()){
+			
+			int	file_capacity = getCapacity( file );
+			
+			if ( file_capacity != cap ){
+				
+				try{
+					replace( file, temp, cap );
+					
+				}catch( IOException e ){
+					
+						// the old file can't be replaced while it is still mapped on some platforms (a
+						// capacity change within a session), carry on with its layout until next time
+					
+					if ( file_capacity == 0 || !file.exists()){
+						
+						throw( e );
+					}
+					
+					cap = file_capacity;
+				}
+			}
+		}
+		
+		capacity	= cap;
+		table_size	= getTableSize( capacity );
+		
+		ring_offset		= HEADER_SIZE;
+		index_offset	= ring_offset + capacity*8;
+		added_offset	= index_offset + table_size*8;
+		
+		long	expected_length = getLength( capacity );
+		
+		boolean	is_new = !file.exists();
+		
+		RandomAccessFile raf = new RandomAccessFile( file, "rw" );
+		
+		try{
+			if ( is_new ){
+				
+				raf.setLength( expected_length );
+				
+			}else if ( raf.length() != expected_length ){
+				
+				throw( new IOException( "Mapped history " + file + " has an unexpected length" ));
+			}
+			
+			buffer = raf.getChannel().map( FileChannel.MapMode.READ_WRITE, 0, expected_length );
+			
+		}finally{
+			
+				// the mapping remains valid after the channel is closed
+			
+			raf.close();
+		}
+		
+		if ( is_new ){
+			
+			buffer.putInt( OFF_MAGIC, MAGIC );
+			buffer.putInt( OFF_VERSION, VERSION );
+			buffer.putInt( OFF_CAPACITY, capacity );
+			
+			writeHeader();
+			
+		}else{
+			
+			count			= buffer.getInt( OFF_COUNT );
+			head			= buffer.getInt( OFF_HEAD );
+			has_zero		= buffer.getInt( OFF_HAS_ZERO ) != 0;
+			latest_publish	= buffer.getLong( OFF_LATEST );
+			
+			if ( buffer.getInt( OFF_CLEAN ) == 0 || count < 0 || count > capacity || head < 0 || head >= capacity ){
+				
+				rebuildIndex();
+			}
+		}
+		
+		buffer.putInt( OFF_CLEAN, 0 );
+	}
+	
+	public File
+	getFile()
+	{
+		return( file );
+	}
+	
+	@Override
+	public synchronized boolean
+	contains(
+		long		id )
+	{
+		if ( id == 0 ){
+			
+			return( has_zero );
+		}
+		
+		int	mask = table_size - 1;
+		
+		int	pos = LongHistorySet.hash( id ) & mask;
+		
+		while( true ){
+			
+			long	k = getIndex( pos );
+			
+			if ( k == id ){
+				
+				return( true );
+				
+			}else if ( k == 0 ){
+				
+				return( false );
+			}
+			
+			pos = ( pos + 1 ) & mask;
+		}
+	}
+	
+	@Override
+	public synchronized void
+	add(
+		long		id,
+		long		item_time,
+		int			added_mins )
+	{
+		if ( item_time > latest_publish ){
+			
+			latest_publish = item_time;
+		}
+		
+		if ( !contains( id )){
+			
+			int	pos;
+			
+			if ( count == capacity ){
+				
+				removeFromIndex( getRing( head ));
+				
+				pos = head;
+				
+				head = ( head + 1 ) % capacity;
+				
+			}else{
+				
+				pos = ( head + count ) % capacity;
+				
+				count++;
+			}
+			
+			setRing( pos, id );
+			
+			buffer.putInt( added_offset + pos*4, added_mins );
+			
+			addToIndex( id );
+		}
+		
+		writeHeader();
+	}
+	
+	@Override
+	public synchronized int
+	expire(
+		int		min_added_mins )
+	{
+		int	removed = 0;
+		
+		while( count > 0 && buffer.getInt( added_offset + head*4 ) < min_added_mins ){
+			
+			removeFromIndex( getRing( head ));
+			
+			head = ( head + 1 ) % capacity;
+			
+			count--;
+			
+			removed++;
+		}
+		
+		if ( removed > 0 ){
+			
+			writeHeader();
+		}
+		
+		return( removed );
+	}
+	
+	@Override
+	public synchronized long
+	getLatestPublish()
+	{
+		return( latest_publish );
+	}
+	
+	@Override
+	public synchronized int
+	size()
+	{
+		return( count );
+	}
+	
+	@Override
+	public synchronized long
+	getNewestId()
+	{
+		return( count==0?0:getRing(( head + count - 1 ) % capacity ));
+	}
+	
+	@Override
+	public synchronized long[]
+	getIds()
+	{
+		long[]	result = new long[count];
+		
+		for ( int i=0;i<count;i++ ){
+			
+			result[i] = getRing(( head + i ) % capacity );
+		}
+		
+		return( result );
+	}
+	
+	@Override
+	public void
+	save()
+	{
+			// nothing to do, the page cache takes care of it
+	}
+	
+	@Override
+	public synchronized void
+	close()
+	{
+		if ( buffer != null ){
+			
+			buffer.putInt( OFF_CLEAN, 1 );
+			
+			buffer.force();
+			
+			buffer = null;
+		}
+	}
+	
+		// returns the capacity of a current format file whose length matches it, 0 otherwise
+	
+	private static int
+	getCapacity(
+		File		file )
+		
+		throws IOException
+	{
+		RandomAccessFile raf = new RandomAccessFile( file, "r" );
+		
+		try{
+			if ( raf.length() < HEADER_SIZE || raf.readInt() != MAGIC || raf.readInt() != VERSION ){
+				
+				return( 0 );
+			}
+			
+			int	file_capacity = raf.readInt();
+			
+			if ( file_capacity <= 0 || file_capacity > MAX_CAPACITY || raf.length() != getLength( file_capacity )){
+				
+				return( 0 );
+			}
+			
+			return( file_capacity );
+			
+		}finally{
+			
+			raf.close();
+		}
+	}
+	
+		// capacity has been reconfigured (or the file is unrecognised, in which case it starts empty). The
+		// newest ids are written with the new layout to a temporary file which then replaces the old one, so
+		// the old one is intact until the new one is complete. The index is left empty and the file
+		// marked unclean so that it is rebuilt when opened
+	
+	private static void
+	replace(
+		File		file,
+		File		temp,
+		int			capacity )
+		
+		throws IOException
+	{
+		long[]	ids		= new long[0];
+		int[]	added	= new int[0];
+		long	latest	= 0;
+		
+		RandomAccessFile raf = new RandomAccessFile( file, "r" );
+		
+		try{
+			int	old_capacity;
+			
+			if ( 	raf.length() >= HEADER_SIZE &&
+					raf.readInt() == MAGIC &&
+					raf.readInt() == VERSION &&
+					( old_capacity = raf.readInt()) > 0 && old_capacity <= MAX_CAPACITY &&
+					raf.length() == getLength( old_capacity )){
+				
+				ids 	= readIds( raf, old_capacity );
+				added	= readAdded( raf, old_capacity, ids.length );
+				
+				raf.seek( OFF_LATEST );
+				
+				latest	= raf.readLong();
+			}
+		}finally{
+			
+			raf.close();
+		}
+		
+		int	from	= Math.max( 0, ids.length - capacity );
+		int	num		= ids.length - from;
+		
+		DataOutputStream dos = new DataOutputStream( new BufferedOutputStream( new FileOutputStream( temp ), 64*1024 ));
+		
+		try{
+			dos.writeInt( MAGIC );
+			dos.writeInt( VERSION );
+			dos.writeInt( capacity );
+			dos.writeInt( num );		// count
+			dos.writeInt( 0 );			// head
+			dos.writeInt( 0 );			// has_zero, set by the rebuild
+			dos.writeInt( 0 );			// clean
+			dos.writeInt( 0 );
+			dos.writeLong( latest );
+			
+			writeZeros( dos, HEADER_SIZE - OFF_LATEST - 8 );
+			
+			for ( int i=from;i<ids.length;i++ ){
+				
+				dos.writeLong( ids[i] );
+			}
+			
+			writeZeros( dos, ( capacity - num )*8L + getTableSize( capacity )*8L );
+			
+			for ( int i=from;i<ids.length;i++ ){
+				
+				dos.writeInt( added[i] );
+			}
+			
+			writeZeros( dos, ( capacity - num )*4L );
+			
+		}catch( IOException e ){
+			
+			dos.close();
+			
+			temp.delete();
+			
+			throw( e );
+		}
+		
+		dos.close();
+		
+		if ( !temp.renameTo( file )){
+			
+				// some platforms won't rename over an existing file. If the delete works and the rename
+				// doesn't then the temporary file is picked up by the next open
+			
+			if ( !file.delete()){
+				
+				temp.delete();
+				
+				throw( new IOException( "Failed to replace " + file ));
+			}
+			
+			if ( !temp.renameTo( file )){
+				
+				throw( new IOException( "Failed to rename " + temp + " to " + file ));
+			}
+		}
+	}
+	
+	private static void
+	writeZeros(
+		DataOutputStream	dos,
+		long				len )
+		
+		throws IOException
+	{
+		byte[]	zeros = new byte[(int)Math.min( len, 64*1024 )];
+		
+		while( len > 0 ){
+			
+			int	chunk = (int)Math.min( len, zeros.length );
+			
+			dos.write( zeros, 0, chunk );
+			
+			len -= chunk;
+		}
+	}
+	
+	private static long
+	getLength(
+		int		capacity )
+	{
+		return( HEADER_SIZE + capacity*8L + getTableSize( capacity )*8L + capacity*4L );
+	}
+	
+	private static long[]
+	readIds(
+		RandomAccessFile	raf,
+		int					old_capacity )
+		
+		throws IOException
+	{
+		raf.seek( OFF_COUNT );
+		
+		int	old_count 	= raf.readInt();
+		int	old_head	= raf.readInt();
+		
+		if ( old_count < 0 || old_count > old_capacity || old_head < 0 || old_head >= old_capacity ){
+			
+			return( new long[0] );
+		}
+		
+		long[]	result = new long[old_count];
+		
+		for ( int i=0;i<old_count;i++ ){
+			
+			raf.seek( HEADER_SIZE + (long)(( old_head + i ) % old_capacity )*8 );
+			
+			result[i] = raf.readLong();
+		}
+		
+		return( result );
+	}
+	
+	private static int[]
+	readAdded(
+		RandomAccessFile	raf,
+		int					old_capacity,
+		int					num )
+	
+		throws IOException
+	{
+		int[]	result = new int[num];
+		
+		if ( num == 0 ){
+			
+			return( result );
+		}
+		
+		long	old_added_offset = HEADER_SIZE + (long)old_capacity*8 + (long)getTableSize( old_capacity )*8;
+		
+		raf.seek( OFF_HEAD );
+		
+		int	old_head = raf.readInt();
+		
+		for ( int i=0;i<num;i++ ){
+			
+			raf.seek( old_added_offset + (long)(( old_head + i ) % old_capacity )*4 );
+			
+			result[i] = raf.readInt();
+		}
+		
+		return( result );
+	}
+	
+	private static int
+	getTableSize(
+		int		capacity )
+	{
+		int	ts = 1;
+		
+		while( ts < capacity*2 ){
+			
+			ts <<= 1;
+		}
+		
+		return( ts );
+	}
+	
+	private void
+	writeHeader()
+	{
+		buffer.putInt( OFF_COUNT, count );
+		buffer.putInt( OFF_HEAD, head );
+		buffer.putInt( OFF_HAS_ZERO, has_zero?1:0 );
+		buffer.putLong( OFF_LATEST, latest_publish );
+	}
+	
+	private long
+	getRing(
+		int		pos )
+	{
+		return( buffer.getLong( ring_offset + pos*8 ));
+	}
+	
+	private void
+	setRing(
+		int		pos,
+		long	id )
+	{
+		buffer.putLong( ring_offset + pos*8, id );
+	}
+	
+	private long
+	getIndex(
+		int		pos )
+	{
+		return( buffer.getLong( index_offset + pos*8 ));
+	}
+	
+	private void
+	setIndex(
+		int		pos,
+		long	id )
+	{
+		buffer.putLong( index_offset + pos*8, id );
+	}
+	
+	private void
+	addToIndex(
+		long		id )
+	{
+		if ( id == 0 ){
+			
+			has_zero = true;
+			
+			return;
+		}
+		
+		int	mask = table_size - 1;
+		
+		int	pos = LongHistorySet.hash( id ) & mask;
+		
+		while( getIndex( pos ) != 0 ){
+			
+			pos = ( pos + 1 ) & mask;
+		}
+		
+		setIndex( pos, id );
+	}
+	
+	private void
+	removeFromIndex(
+		long		id )
+	{
+		if ( id == 0 ){
+			
+			has_zero = false;
+			
+			return;
+		}
+		
+		int	mask = table_size - 1;
+		
+		int	pos = LongHistorySet.hash( id ) & mask;
+		
+		while( getIndex( pos ) != id ){
+			
+			if ( getIndex( pos ) == 0 ){
+				
+				return;
+			}
+			
+			pos = ( pos + 1 ) & mask;
+		}
+		
+			// backward shift deletion, see LongHistorySet
+		
+		int	gap = pos;
+		
+		pos = ( pos + 1 ) & mask;
+		
+		while( true ){
+			
+			long	k = getIndex( pos );
+			
+			if ( k == 0 ){
+				
+				break;
+			}
+			
+			int	home = LongHistorySet.hash( k ) & mask;
+			
+			if ((( pos - home ) & mask ) >= (( pos - gap ) & mask )){
+				
+				setIndex( gap, k );
+				
+				gap = pos;
+			}
+			
+			pos = ( pos + 1 ) & mask;
+		}
+		
+		setIndex( gap, 0 );
+	}
+	
+	private void
+	rebuildIndex()
+	{
+		if ( count < 0 || count > capacity || head < 0 || head >= capacity ){
+			
+			count	= 0;
+			head	= 0;
+		}
+		
+		for ( int i=0;i<table_size;i++ ){
+			
+			setIndex( i, 0 );
+		}
+		
+		has_zero = false;
+		
+		for ( int i=0;i<count;i++ ){
+			
+			long	id = getRing(( head + i ) % capacity );
+			
+			if ( !contains( id )){
+				
+				addToIndex( id );
+			}
+		}
+		
+		writeHeader();
+	}
+}
@@ -0,0 +1,335 @@
+/*
+ * Copyright (C) Bigly Software, Inc, All Rights Reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307, USA.
+ */
+
+
+package com.azureus.plugins.rsstochat;
+
+import java.io.*;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+	// on-disk copy of a chat's outbound queue. The file is a header (magic, version, offset of the
+	// first unsent record) followed by records of (type, length, bytes) appended as posts are queued.
+	// Sending a post just advances the offset; the file is truncated once everything has been sent
+	// and rewritten without the sent records if they come to dominate it. A torn final record from an
+	// interrupted append is ignored. The offset is advanced after the post is handed to the chat so a
+	// crash in between can repeat a post but never lose one
+
+public class
+PostQueueFile
+{
+	private static final int	MAGIC			= 0x52535051;	// "RSPQ"
+	private static final int	VERSION			= 1;
+	
+	private static final int	HEADER_SIZE		= 16;
+	private static final int	RECORD_HEADER	= 5;
+	
+	private static final int	TYPE_TEXT		= 0;
+	private static final int	TYPE_RAW		= 1;
+	
+	private static final int	MAX_RECORD		= 1024*1024;
+	private static final long	COMPACT_MIN		= 64*1024;
+	
+	private final File		file;
+	
+	private long					head		= HEADER_SIZE;
+	private long					end			= HEADER_SIZE;		// end of the last complete record
+	private final LinkedList<Integer>	record_sizes = new LinkedList<Integer>();
+	
+	public
+	PostQueueFile(
+		File		_file )
+	{
+		file	= _file;
+	}
+	
+		// returns the unsent posts, Strings or byte[]s for raw messages, in order
+	
+	public synchronized List<Object>
+	read()
+		
+		throws IOException
+	{
+		List<Object>	result = new ArrayList<Object>();
+		
+		record_sizes.clear();
+		
+		head	= HEADER_SIZE;
+		end		= HEADER_SIZE;
+		
+		if ( !file.exists()){
+			
+			return( result );
+		}
+		
+		DataInputStream dis = new DataInputStream( new BufferedInputStream( new FileInputStream( file )));
+		
+		try{
+			long	length = file.length();
+			
+			if ( length < HEADER_SIZE || dis.readInt() != MAGIC || dis.readInt() != VERSION ){
+				
+				throw( new IOException( "Invalid post queue " + file ));
+			}
+			
+			long	pos = dis.readLong();
+			
+			if ( pos < HEADER_SIZE || pos > length ){
+				
+				throw( new IOException( "Invalid post queue offset in " + file ));
+			}
+			
+			long	to_skip = pos - HEADER_SIZE;
+			
+			while( to_skip > 0 ){
+				
+				int	skipped = dis.skipBytes((int)Math.min( to_skip, Integer.MAX_VALUE ));
+				
+				if ( skipped <= 0 ){
+					
+					throw( new IOException( "Unexpected end of " + file ));
+				}
+				
+				to_skip -= skipped;
+			}
+			
+			head	= pos;
+			end		= pos;
+			
+			while( end + RECORD_HEADER <= length ){
+				
+				int	type	= dis.read();
+				int	len		= dis.readInt();
+				
+				if ( len < 0 || len > MAX_RECORD || end + RECORD_HEADER + len > length ){
+					
+					break;
+				}
+				
+				byte[]	data = new byte[len];
+				
+				dis.readFully( data );
+				
+				result.add( type==TYPE_TEXT?new String( data, "UTF-8" ):data );
+				
+				record_sizes.add( RECORD_HEADER + len );
+				
+				end += RECORD_HEADER + len;
+			}
+			
+			return( result );
+			
+		}finally{
+			
+			dis.close();
+		}
+	}
+	
+	public synchronized void
+	append(
+		Object		message )
+		
+		throws IOException
+	{
+		boolean	is_text = message instanceof String;
+		
+		byte[]	data = is_text?((String)message).getBytes( "UTF-8" ):(byte[])message;
+		
+		if ( data.length > MAX_RECORD ){
+			
+			throw( new IOException( "Post too large" ));
+		}
+		
+		ByteArrayOutputStream	baos = new ByteArrayOutputStream( RECORD_HEADER + data.length );
+		
+		DataOutputStream dos = new DataOutputStream( baos );
+		
+		dos.write( is_text?TYPE_TEXT:TYPE_RAW );
+		dos.writeInt( data.length );
+		dos.write( data );
+		
+		RandomAccessFile raf = new RandomAccessFile( file, "rw" );
+		
+		try{
+			if ( raf.length() < HEADER_SIZE ){
+				
+				writeHeader( raf );
+			}
+			
+				// overwrites any torn record
+			
+			raf.seek( end );
+			
+			raf.write( baos.toByteArray());
+			
+			raf.setLength( end + baos.size());
+			
+		}finally{
+			
+			raf.close();
+		}
+		
+		end += baos.size();
+		
+		record_sizes.add( baos.size());
+	}
+	
+		// marks the first unsent post as sent
+	
+	public synchronized void
+	removeFirst()
+		
+		throws IOException
+	{
+		if ( record_sizes.isEmpty()){
+			
+			return;
+		}
+		
+		head += record_sizes.removeFirst();
+		
+		if ( head == end ){
+			
+			head	= HEADER_SIZE;
+			end		= HEADER_SIZE;
+			
+			RandomAccessFile raf = new RandomAccessFile( file, "rw" );
+			
+			try{
+				writeHeader( raf );
+				
+				raf.setLength( HEADER_SIZE );
+				
+			}finally{
+				
+				raf.close();
+			}
+		}else if ( head >= COMPACT_MIN && head - HEADER_SIZE > end - head ){
+			
+			compact();
+			
+		}else{
+			
+			RandomAccessFile raf = new RandomAccessFile( file, "rw" );
+			
+			try{
+				raf.seek( 8 );
+				
+				raf.writeLong( head );
+				
+			}finally{
+				
+				raf.close();
+			}
+		}
+	}
+	
+	public synchronized void
+	delete()
+	{
+		record_sizes.clear();
+		
+		head	= HEADER_SIZE;
+		end		= HEADER_SIZE;
+		
+		file.delete();
+	}
+	
+	private void
+	writeHeader(
+		RandomAccessFile	raf )
+		
+		throws IOException
+	{
+		raf.seek( 0 );
+		
+		raf.writeInt( MAGIC );
+		raf.writeInt( VERSION );
+		raf.writeLong( head );
+	}
+	
+	private void
+	compact()
+		
+		throws IOException
+	{
+		File temp = new File( file.getParentFile(), file.getName() + ".tmp" );
+		
+		RandomAccessFile src = new RandomAccessFile( file, "r" );
+		
+		try{
+			DataOutputStream dos = new DataOutputStream( new BufferedOutputStream( new FileOutputStream( temp )));
+			
+			try{
+				dos.writeInt( MAGIC );
+				dos.writeInt( VERSION );
+				dos.writeLong( HEADER_SIZE );
+				
+				byte[]	buffer = new byte[16*1024];
+				
+				src.seek( head );
+				
+				long	rem = end - head;
+				
+				while( rem > 0 ){
+					
+					int	len = src.read( buffer, 0, (int)Math.min( buffer.length, rem ));
+					
+					if ( len <= 0 ){
+						
+						throw( new IOException( "Unexpected end of " + file ));
+					}
+					
+					dos.write( buffer, 0, len );
+					
+					rem -= len;
+				}
+			}finally{
+				
+				dos.close();
+			}
+		}finally{
+			
+			src.close();
+		}
+		
+			// as for HistoryJournal, the queue file is left as it was if the move fails
+		
+		try{
+			try{
+				Files.move( temp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING );
+				
+			}catch( AtomicMoveNotSupportedException e ){
+				
+				Files.move( temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING );
+			}
+		}catch( IOException e ){
+			
+			temp.delete();
+			
+			throw( e );
+		}
+		
+		end 	= HEADER_SIZE + ( end - head );
+		head	= HEADER_SIZE;
+	}
+}
@@ -24,6 +24,8 @@ package com.azureus.plugins.rsstochat;
 
 import java.io.*;
 import java.net.URL;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
 import java.text.SimpleDateFormat;
 import java.util.*;
 import java.util.regex.Matcher;
@@ -40,16 +42,20 @@ import com.biglybt.core.torrent.TOTorrentCreator;
 import com.biglybt.core.torrent.TOTorrentFactory;
 import com.biglybt.core.torrent.TOTorrentFile;
 import com.biglybt.core.util.AENetworkClassifier;
+import com.biglybt.core.util.AERunnable;
+import com.biglybt.core.util.AESemaphore;
+import com.biglybt.core.util.AsyncDispatcher;
 import com.biglybt.core.util.BEncoder;
 import com.biglybt.core.util.Base32;
 import com.biglybt.core.util.ByteFormatter;
 import com.biglybt.core.util.Debug;
 import com.biglybt.core.util.DisplayFormatters;
 import com.biglybt.core.util.FileUtil;
-import com.biglybt.core.util.HashWrapper;
+import com.biglybt.core.util.RandomUtils;
 import com.biglybt.core.util.SHA1Simple;
 import com.biglybt.core.util.SimpleTimer;
 import com.biglybt.core.util.SystemTime;
+import com.biglybt.core.util.ThreadPool;
 import com.biglybt.core.util.TimerEvent;
 import com.biglybt.core.util.TimerEventPerformer;
 import com.biglybt.core.util.TimerEventPeriodic;
@@ -65,6 +71,7 @@ import com.biglybt.pif.torrent.TorrentAttribute;
 import com.biglybt.pif.ui.UIManager;
 import com.biglybt.pif.ui.components.UITextArea;
 import com.biglybt.pif.ui.config.ActionParameter;
+import com.biglybt.pif.ui.config.IntParameter;
 import com.biglybt.pif.ui.config.Parameter;
 import com.biglybt.pif.ui.config.ParameterListener;
 import com.biglybt.pif.ui.model.BasicPluginConfigModel;
@@ -73,10 +80,8 @@ import com.biglybt.pif.utils.LocaleUtilities;
 import com.biglybt.pif.utils.search.SearchResult;
 import com.biglybt.pif.utils.xml.rss.*;
 import com.biglybt.pif.utils.xml.simpleparser.SimpleXMLParserDocument;
-import com.biglybt.pif.utils.xml.simpleparser.SimpleXMLParserDocumentAttribute;
 import com.biglybt.pif.utils.xml.simpleparser.SimpleXMLParserDocumentNode;
 import com.biglybt.pifimpl.local.PluginCoreUtils;
-import com.biglybt.pifimpl.local.utils.resourcedownloader.ResourceDownloaderFactoryImpl;
 import com.biglybt.ui.swt.Utils;
 import com.biglybt.ui.swt.views.utils.ManagerUtils;
 
@@ -99,12 +104,28 @@ RSSToChat
 	implements UnloadablePlugin
 {
 	public static final int MAX_MESSAGE_SIZE		= 500;
-	public static final int MAX_POSTS_PER_REFRESH	= 10;
+	public static final int MAX_QUEUED_POSTS		= 1000;		// per chat
+	public static final int POST_RATE_DEFAULT		= 10;		// per minute
+	public static final int POST_BURST_DEFAULT		= 10;
+	public static final int POST_RETRY_PERIOD		= 60*1000;	// after a failed send
 	public static final int MAX_HISTORY_ENTRIES		= 10000;
+	public static final int HISTORY_COMPACT_RECORDS	= 1000;
+	public static final int HISTORY_FLUSH_PERIOD	= 15*1000;
+	public static final int HISTORY_CLOSE_WAIT		= 30*1000;	// for a running compaction
+	public static final int HISTORY_KEY_VERSION		= 2;		// 1 = SHA1 prefix, 2 = FastHash
 	
 	public static final int WEBSITE_RETAIN_SITES_DEFAULT	= 7;
 	public static final int WEBSITE_RETAIN_ITEMS_DEFAULT	= 2048;
 	
+	public static final int REFRESH_THREADS_DEFAULT		= 4;
+	public static final int REFRESH_THREADS_MAX			= 32;
+	public static final int REFRESH_UNLOAD_WAIT			= 30*1000;	// for in-progress refreshes to finish
+	
+	public static final long MIN_REFRESH_PERIOD			= 10*1000;
+	
+	public static final int MAX_TORRENT_SIZE			= 16*1024*1024;
+	public static final int MAX_THUMB_SIZE				= 2*1024*1024;
+	
 	private TorrentAttribute		ta_website;
 	
 	private PluginInterface			plugin_interface;
@@ -115,14 +136,31 @@ RSSToChat
 
 	private ActionParameter			republish;
 	
+	private IntParameter			refresh_threads;
+	
 	private File		config_file;
 	private File		history_dir;
 
-	private TimerEventPeriodic	timer;
+	private ThreadPool			refresh_pool;
+	private RefreshScheduler	scheduler;
 	
-	private List<Mapping>		mappings = new ArrayList<Mapping>();
+	private SourceHealthTracker	source_health 	= new SourceHealthTracker();
+	private FeedCache			feed_cache		= new FeedCache();
+	private HTTPClient			http_client		= new HTTPClient();
+	
+	private AsyncDispatcher		history_dispatcher	= new AsyncDispatcher( "RSSToChat:history", 5000 );
+	
+	private Map<String,History>	histories			= new HashMap<String, History>();
+	private Set<String>			histories_opening	= new HashSet<String>();	// keys, guarded by 'histories'
+	
+	private Set<History>		dirty_histories		= new HashSet<History>();
 	
-	private boolean	force_site_update;
+	private AsyncDispatcher		post_dispatcher		= new AsyncDispatcher( "RSSToChat:post", 5000 );
+	
+	private Map<String,ChatPoster>	posters			= new HashMap<String, ChatPoster>();
+	private TimerEventPeriodic	history_flush_timer;
+	
+	private List<Mapping>		mappings = new ArrayList<Mapping>();
 	
 	private boolean	unloaded;
 	
@@ -205,10 +243,64 @@ RSSToChat
 					{
 						republish.setEnabled( false );
 						
-						force_site_update = true;
+						List<Mapping>	maps;
+						
+						synchronized( mappings ){
+							
+							maps = new ArrayList<Mapping>( mappings );
+						}
+						
+						scheduler.forceRefresh( maps );
 					}
 				});
 
+		refresh_threads = config_model.addIntParameter2( "azrsstochat.config.refresh.threads", "azrsstochat.config.refresh.threads", REFRESH_THREADS_DEFAULT, 1, REFRESH_THREADS_MAX );
+		
+			// mappings are refreshed on this pool so that a slow source doesn't hold up the others
+			// or the shared SimpleTimer thread - each mapping is still only ever updated by one thread
+			// at a time (see Mapping.reserveUpdate)
+		
+		refresh_pool = new ThreadPool( "RSSToChat:refresh", refresh_threads.getValue(), true );
+		
+		refresh_threads.addListener(
+				new ParameterListener() 
+				{
+					@Override
+					public void
+					parameterChanged(
+						Parameter param ) 
+					{
+						refresh_pool.setMaxThreads( refresh_threads.getValue());
+					}
+				});
+		
+		scheduler = new RefreshScheduler();
+		
+			// histories are written behind, refreshes only mark them dirty
+		
+		history_flush_timer = 
+			SimpleTimer.addPeriodicEvent(
+				"RSSToChat:historyFlush",
+				HISTORY_FLUSH_PERIOD,
+				new TimerEventPerformer()
+				{
+					@Override
+					public void
+					perform(
+						TimerEvent event )
+					{
+						history_dispatcher.dispatch(
+							new AERunnable()
+							{
+								@Override
+								public void
+								runSupport()
+								{
+									flushHistories();
+								}
+							});
+					}
+				});
 		
 		final UITextArea text_area = config_model.addTextArea( "azrsstochat.statuslog");
 		
@@ -244,54 +336,12 @@ RSSToChat
 				
 		synchronized( mappings ){
 			
-			loadConfig();
-
 			if ( unloaded ){
 				
 				return;
 			}
 			
-			timer = 
-				SimpleTimer.addPeriodicEvent(
-					"RSSToChat",
-					60*1000,
-					new TimerEventPerformer()
-					{	
-						private int		minute_count;
-					
-						@Override
-						public void
-						perform(
-							TimerEvent event ) 
-						{
-							BuddyPluginBeta bp = BuddyPluginUtils.getBetaPlugin();
-							
-							if ( bp == null || !bp.isInitialised()){
-								
-								log( "Decentralized chat not available (yet)" );
-								
-								return;
-							}
-							
-							minute_count++;
-													
-							List<Mapping>	maps;
-							
-							synchronized( mappings ){
-								
-								maps = new ArrayList<Mapping>( mappings );
-							}
-							
-							for ( Mapping map: maps ){
-								
-								map.update( bp, minute_count, force_site_update );
-							}
-							
-							force_site_update = false;
-							
-							republish.setEnabled( true );
-						}
-					});
+			loadConfig();
 		}
 	}
 	
@@ -338,6 +388,8 @@ RSSToChat
 		
 		List<Mapping>	loaded_mappings = new ArrayList<Mapping>();
 		
+		boolean	config_ok = false;
+		
 		try{
 			SubscriptionManager subs_man = SubscriptionManagerFactory.getSingleton();
 			
@@ -418,6 +470,7 @@ RSSToChat
 							throw( new Exception( "<dl_link_pattern> value '" + desc_link_pattern + "' is invalid", e ));
 						}
 					}
+					
 					source 	= url_str;
 					is_rss	= true;
 					
@@ -544,10 +597,10 @@ RSSToChat
 
 				String refresh_str = refresh_node.getValue().trim();
 				
-				int	refresh_mins;
+				long	refresh_period;
 				
 				try{
-					refresh_mins = Integer.parseInt( refresh_str );
+					refresh_period = parsePeriod( refresh_str, 60*1000 );
 							
 				}catch( Throwable e ){
 					
@@ -555,6 +608,161 @@ RSSToChat
 
 				}
 				
+				if ( refresh_period < MIN_REFRESH_PERIOD ){
+					
+					throw( new Exception( "<refresh> value of '" + refresh_str + "' is too small, minimum is " + formatPeriod( MIN_REFRESH_PERIOD )));
+				}
+				
+					// optional adaptive mode - the period is varied between min and max depending
+					// on how many new items each refresh turns up
+				
+				long	refresh_min = 0;
+				long	refresh_max	= 0;
+				
+				SimpleXMLParserDocumentNode refresh_adaptive_node = kid.getChild( "refresh_adaptive" );
+				
+				if ( refresh_adaptive_node != null ){
+					
+					SimpleXMLParserDocumentNode min_node = refresh_adaptive_node.getChild( "min" );
+					SimpleXMLParserDocumentNode max_node = refresh_adaptive_node.getChild( "max" );
+					
+					if ( min_node == null || max_node == null ){
+						
+						throw( new Exception( "<refresh_adaptive> must contain a <min> and a <max> entry" ));
+					}
+					
+					try{
+						refresh_min = parsePeriod( min_node.getValue(), 60*1000 );
+						refresh_max = parsePeriod( max_node.getValue(), 60*1000 );
+						
+					}catch( Throwable e ){
+						
+						throw( new Exception( "<refresh_adaptive> values of '" + min_node.getValue() + "' and '" + max_node.getValue() + "' are invalid" ));
+					}
+					
+					if ( refresh_min < MIN_REFRESH_PERIOD || refresh_max < refresh_min ){
+						
+						throw( new Exception( "<refresh_adaptive> values of '" + min_node.getValue() + "' and '" + max_node.getValue() + "' are invalid" ));
+					}
+				}
+				
+					// optional random delay added to each refresh to further spread load
+				
+				long	refresh_jitter = 0;
+				
+				SimpleXMLParserDocumentNode refresh_jitter_node = kid.getChild( "refresh_jitter" );
+				
+				if ( refresh_jitter_node != null ){
+					
+					String jitter_str = refresh_jitter_node.getValue().trim();
+					
+					try{
+						refresh_jitter = parsePeriod( jitter_str, 1000 );
+						
+					}catch( Throwable e ){
+						
+						throw( new Exception( "<refresh_jitter> value of '" + jitter_str + "' is invalid" ));
+					}
+				}
+				
+					// optional history settings - the store used to remember published items, its size and
+					// how long entries are kept for. Entries go once either limit is reached
+				
+				int		history_store		= Mapping.HISTORY_STORE_JOURNAL;
+				int		history_max_entries	= MAX_HISTORY_ENTRIES;
+				int		history_max_age		= 0;		// minutes, 0 = no limit
+				
+				SimpleXMLParserDocumentNode history_node = kid.getChild( "history" );
+				
+				if ( history_node != null ){
+					
+					SimpleXMLParserDocumentNode store_node 			= history_node.getChild( "store" );
+					SimpleXMLParserDocumentNode max_entries_node 	= history_node.getChild( "max_entries" );
+					SimpleXMLParserDocumentNode max_age_node 		= history_node.getChild( "max_age" );
+					
+					if ( store_node != null ){
+						
+						String store_str = store_node.getValue().trim();
+						
+						if ( store_str.equalsIgnoreCase( "journal" )){
+							
+						}else if ( store_str.equalsIgnoreCase( "mapped" )){
+							
+							history_store = Mapping.HISTORY_STORE_MAPPED;
+							
+						}else{
+							
+							throw( new Exception( "<store> value of '" + store_str + "' is invalid" ));
+						}
+					}
+					
+					if ( max_entries_node != null ){
+						
+						String max_str = max_entries_node.getValue().trim();
+						
+						try{
+							history_max_entries = Integer.parseInt( max_str );
+							
+						}catch( Throwable e ){
+							
+							throw( new Exception( "<max_entries> value of '" + max_str + "' is invalid" ));
+						}
+						
+						if ( history_max_entries < 1 || history_max_entries > MappedHistoryStore.MAX_CAPACITY ){
+							
+							throw( new Exception( "<max_entries> value of '" + max_str + "' is invalid, must be between 1 and " + MappedHistoryStore.MAX_CAPACITY ));
+						}
+					}
+					
+					if ( max_age_node != null ){
+						
+						String age_str = max_age_node.getValue().trim();
+						
+						long	age;
+						
+						try{
+								// default unit is days
+							
+							age = parsePeriod( age_str, 24*60*60*1000 );
+							
+						}catch( Throwable e ){
+							
+							throw( new Exception( "<max_age> value of '" + age_str + "' is invalid" ));
+						}
+						
+						if ( age < 60*1000 || age/(60*1000) > Integer.MAX_VALUE ){
+							
+							throw( new Exception( "<max_age> value of '" + age_str + "' is invalid, must be at least 1 minute" ));
+						}
+						
+						history_max_age = (int)( age/(60*1000));
+					}
+				}
+				
+					// optional posting limits for the chat - a token bucket refilled at 'rate' posts a minute
+					// holding up to 'burst'
+				
+				int		post_rate	= POST_RATE_DEFAULT;
+				int		post_burst	= POST_BURST_DEFAULT;
+				
+				SimpleXMLParserDocumentNode posting_node = kid.getChild( "posting" );
+				
+				if ( posting_node != null ){
+					
+					SimpleXMLParserDocumentNode rate_node 	= posting_node.getChild( "rate" );
+					SimpleXMLParserDocumentNode burst_node 	= posting_node.getChild( "burst" );
+					
+					if ( rate_node != null ){
+						
+						post_rate = parsePositiveInt( "rate", rate_node.getValue());
+					}
+					
+					if ( burst_node != null ){
+						
+						post_burst = parsePositiveInt( "burst", burst_node.getValue());
+					}
+				}
+				
 				if ( flags_node != null ){
 					
 					String flags_str = flags_node.getValue().trim();
@@ -707,7 +915,7 @@ RSSToChat
 				}
 				for ( String network: networks ){
 					
-					Mapping mapping = new Mapping( source, is_rss, desc_link_pattern, link_type, ignore_dates, publish_unread, min_seeds, min_leechers, network, key, type, nick, presentation, website_name, website_retain_sites, website_retain_items, item_associations, refresh_mins, flags );
+					Mapping mapping = new Mapping( source, is_rss, desc_link_pattern, link_type, ignore_dates, publish_unread, min_seeds, min_leechers, network, key, type, nick, presentation, website_name, website_retain_sites, website_retain_items, item_associations, refresh_period, refresh_min, refresh_max, refresh_jitter, history_store, history_max_entries, history_max_age, post_rate, post_burst, flags );
 					
 					log( "    Mapping: " + mapping.getOverallName());
 					
@@ -715,6 +923,7 @@ RSSToChat
 				}
 			}
 		
+			config_ok = true;
 			
 		}catch( Throwable e ){
 			
@@ -733,6 +942,118 @@ RSSToChat
 			mappings.clear();
 			
 			mappings.addAll ( loaded_mappings );
+			
+			scheduler.setMappings( loaded_mappings );
+		}
+		
+		Set<String>	history_keys = new HashSet<String>();
+		
+		for ( Mapping mapping: loaded_mappings ){
+			
+			history_keys.add( mapping.getHistoryKey());
+		}
+		
+		closeHistories( history_keys );
+		
+			// a partially parsed config mustn't take posters with it, they're picked up again
+			// once the config is fixed
+		
+		if ( config_ok ){
+			
+			Set<String>	poster_keys = new HashSet<String>();
+			
+			for ( Mapping mapping: loaded_mappings ){
+				
+				poster_keys.add( mapping.getPosterKey());
+			}
+			
+			closePosters( poster_keys, false );
+		}
+	}
+	
+	private static int
+	parsePositiveInt(
+		String		name,
+		String		str )
+		
+		throws Exception
+	{
+		str = str.trim();
+		
+		int	result;
+		
+		try{
+			result = Integer.parseInt( str );
+			
+		}catch( Throwable e ){
+			
+			throw( new Exception( "<" + name + "> value of '" + str + "' is invalid" ));
+		}
+		
+		if ( result < 1 ){
+			
+			throw( new Exception( "<" + name + "> value of '" + str + "' is invalid, must be at least 1" ));
+		}
+		
+		return( result );
+	}
+	
+		// parses a period such as "15", "30s", "10m", "2h" or "7d" - values without a unit are in 'default_unit' millis
+	
+	private static long
+	parsePeriod(
+		String		str,
+		long		default_unit )
+		
+		throws Exception
+	{
+		str = str.trim().toLowerCase( Locale.US );
+		
+		long	unit = default_unit;
+		
+		if ( str.endsWith( "s" )){
+			
+			unit = 1000;
+			
+		}else if ( str.endsWith( "m" )){
+			
+			unit = 60*1000;
+			
+		}else if ( str.endsWith( "h" )){
+			
+			unit = 60*60*1000;
+			
+		}else if ( str.endsWith( "d" )){
+			
+			unit = 24*60*60*1000;
+		}
+		
+		if ( !Character.isDigit( str.charAt( str.length()-1 ))){
+			
+			str = str.substring( 0, str.length() - 1 ).trim();
+		}
+		
+		long	value = Long.parseLong( str );
+		
+		if ( value < 0 ){
+			
+			throw( new Exception( "Negative period" ));
+		}
+		
+		return( value * unit );
+	}
+	
+	private static String
+	formatPeriod(
+		long		millis )
+	{
+		if ( millis % (60*1000) == 0 ){
+			
+			return( ( millis / (60*1000)) + " min" );
+			
+		}else{
+			
+			return( ( millis / 1000 ) + " sec" );
 		}
 	}
 	
@@ -754,24 +1075,27 @@ RSSToChat
 			
 			desc_url_str = UrlUtils.decode( desc_url_str );
 			
-			String lc_desc_url_str = desc_url_str.toLowerCase();
+			if ( !LinkClassifier.isURL( desc_url_str )){
+				
+				continue;
+			}
 			
-			try{
-				URL desc_url = new URL(desc_url_str);
-
-				if ( lc_desc_url_str.startsWith( "magnet:" )){
-					
-					desc_dl_link = desc_url.toExternalForm();
-					
-				}else{
+			if ( LinkClassifier.isMagnet( desc_url_str )){
+				
+				String link = LinkClassifier.normalise( desc_url_str );
+				
+				if ( link != null ){
 					
-					if ( lc_desc_url_str.contains( ".torrent" )){
-						
-						desc_fl_link = desc_url.toExternalForm();
-					}
+					desc_dl_link = link;
 				}
-			}catch( Throwable e ){
+			}else if ( LinkClassifier.containsTorrentExtension( desc_url_str )){
 				
+				String link = LinkClassifier.normalise( desc_url_str );
+				
+				if ( link != null ){
+					
+					desc_fl_link = link;
+				}
 			}
 		}
 		
@@ -793,71 +1117,87 @@ RSSToChat
 	{
 		boolean	try_again = false;
 		
-		try{
-			RSSFeed feed = plugin_interface.getUtilities().getRSSFeed( new URL( rss_source ));
+		int	published_before = history.getPublishCount();
+		
+		String	source_host = mapping.getSourceHost();
+		
+		if ( !source_health.isAvailable( source_host )){
 			
-			RSSChannel channel = feed.getChannels()[0];
+			log( "    Skipping " + rss_source + ", host '" + source_host + "' is " + source_health.getStatus( source_host ));
 			
-			RSSItem[] items = channel.getItems();
+				// not a retry, the scheduler holds the mapping off until the host is due to be probed
+			
+			return( false );
+		}
+		
+		try{
+			FeedFetch fetch;
 			
-			log( "    RSS '" + rss_source + "' returned " + items.length + " total items" );
+			try{
+					// a forced update needs the content regardless
+				
+				fetch = feed_cache.getFeed( rss_source, force?null:history.getETag(), force?null:history.getLastModified());
+				
+			}catch( Throwable e ){
+				
+				source_health.reportFailure( source_host, e );
+				
+				throw( e );
+			}
 			
-			final Map<RSSItem, Integer> item_map = new HashMap<RSSItem, Integer>();
+			source_health.reportSuccess( source_host );
 			
-			for ( int i=0;i<items.length;i++ ){
+			if ( fetch.isNotModified()){
+				
+				log( "    RSS '" + rss_source + "' not modified" );
 				
-				item_map.put( items[i], i );
+				mapping.recordRefresh( 0, false );
+				
+				return( false );
 			}
 			
-			Arrays.sort( 
-				items,
-				new Comparator<RSSItem>()
-				{
-					@Override
-					public int
-					compare(
-						RSSItem i1,
-						RSSItem i2) 
-					{
-						Date d1 = i1.getPublicationDate();
-						Date d2 = i2.getPublicationDate();
-						
-						long res = (d1==null?0:d1.getTime()) - (d2==null?0:d2.getTime());
-						
-						if ( res < 0 ){
-							return( -1 );
-						}else if ( res > 0 ){
-							return( 1 );
-						}else{
-							return( item_map.get( i1 ) - item_map.get( i2 ));
-						}
-					}
-				});
+				// plenty of sources ignore conditional requests but return identical content
+			
+			byte[]	digest = fetch.getDigest();
+			
+			if ( !force && Arrays.equals( digest, history.getDigest())){
+				
+				log( "    RSS '" + rss_source + "' unchanged" );
+				
+				history.setFetchState( fetch.getETag(), fetch.getLastModified(), digest );
+				
+				mapping.recordRefresh( 0, false );
+				
+				return( false );
+			}
 			
-			int	posted = 0;
-					
 			String presentation = mapping.getPresentation();
 			
 			boolean presentation_is_link = presentation.startsWith( "link" );
 
-			boolean	site_updated = force;
+			FeedParser.Feed feed = fetch.getParsedFeed();
 			
-			for ( RSSItem item: items ){
+			if ( feed.getParseError() != null ){
 				
-				Date 	item_date = item.getPublicationDate();
-				
-				long	item_time = item_date==null?0:item_date.getTime();
+				log( "    RSS '" + rss_source + "' couldn't be stream parsed (" + feed.getParseError() + "), used full parse" );
+			}
+			
+				// link presentations never post items older than the latest published one so these
+				// can be dropped up front. Website presentations accept out-of-order items
+			
+			FeedParser.ItemQueue items = feed.getItemQueue( presentation_is_link?history.getLatestPublish():0 );
+			
+			log( "    RSS '" + rss_source + "' returned " + feed.getItemCount() + " total items (" + items.size() + " candidates)" );
+			
+			int	posted = 0;
+
+			boolean	site_updated = force;
+			
+			FeedParser.Item item;
+			
+			while(( item = items.next()) != null ){
 				
-				if ( item_time > 0 && item_time < history.getLatestPublish()){
-					
-						// allow out-of-order item addition for website presentations they may well be
-						// assembled from downloads added at varying times
-					
-					if ( presentation_is_link ){
-					
-						continue;
-					}
-				}
+				long	item_time = item.getTime();
 				
 				String title = item.getTitle();
 				
@@ -868,188 +1208,23 @@ RSSToChat
 					title_short = title_short.substring( 0, 80 ) + "...";
 				}
 				
-				String 	hash 		= "";
-				String	dl_link 	= null;
-				String	cdp_link 	= null;
-				String	thumb_link	= null;
+				String 	hash 		= item.getHash();
+				String	dl_link 	= item.getDownloadLink();
+				String	cdp_link 	= item.getDetailsLink();
+				String	thumb_link	= item.getThumbLink();
 				
-				String	description		= null;
+				String	description		= item.getDescription();
 				String	desc_dl_link	= null;
 
-				long	size 		= -1;
-				long	seeds		= -1;
-				long	leechers	= -1;
+				long	size 		= item.getSize();
+				long	seeds		= item.getSeeds();
+				long	leechers	= item.getLeechers();
 				
-				SimpleXMLParserDocumentNode node = item.getNode();
+				Pattern pattern = mapping.desc_link_pattern;
 				
-				SimpleXMLParserDocumentNode[] kids = node.getChildren();
+				if ( pattern != null && description != null ){
 				
-				for ( SimpleXMLParserDocumentNode child: kids ){
-					
-					String	lc_child_name 		= child.getName().toLowerCase();
-					String	lc_full_child_name 	= child.getFullName().toLowerCase();
-					
-					String	value = child.getValue();
-					
-					if (lc_child_name.equals( "enclosure" )){
-						
-						SimpleXMLParserDocumentAttribute typeAtt = child.getAttribute("type");
-						
-						if( typeAtt != null && typeAtt.getValue().equalsIgnoreCase( "application/x-bittorrent")) {
-							
-							SimpleXMLParserDocumentAttribute urlAtt = child.getAttribute("url");
-							
-							if( urlAtt != null ){
-								
-								dl_link = urlAtt.getValue();
-							}
-							
-							SimpleXMLParserDocumentAttribute lengthAtt = child.getAttribute("length");
-							
-							if (lengthAtt != null){
-								
-								try{
-									size = Long.parseLong(lengthAtt.getValue().trim());
-									
-								}catch( Throwable e ){
-								}	
-							}
-						}
-			
-					}else if ( lc_child_name.equals( "link" ) || lc_child_name.equals( "guid" )){
-						
-						String lc_value = value.toLowerCase();
-														
-						try{
-							URL url = new URL(value);
-
-							if ( 	lc_value.endsWith( ".torrent" ) ||
-									lc_value.startsWith( "magnet:" ) ||
-									lc_value.startsWith( "bc:" ) ||
-									lc_value.startsWith( "bctp:" ) ||
-									lc_value.startsWith( "dht:" )){
-								
-								
-								dl_link = value;
-								
-							}else{
-								
-								cdp_link = value;
-							}
-						}catch( Throwable e ){
-							
-								// see if this is an atom feed 
-								//  <link rel="alternate" type="application/x-bittorrent" href="http://asdasd/ 
-							
-							SimpleXMLParserDocumentAttribute typeAtt = child.getAttribute( "type" );
-							
-							if ( typeAtt != null && typeAtt.getValue().equalsIgnoreCase("application/x-bittorrent")) {
-							
-								SimpleXMLParserDocumentAttribute hrefAtt = child.getAttribute( "href" );
-								
-								if ( hrefAtt != null ){
-									
-									String	href = hrefAtt.getValue().trim();
-									
-									try{
-										
-										dl_link = new URL( href ).toExternalForm();
-										
-									}catch( Throwable f ){
-										
-									}
-								}
-							}
-						}
-					}else if ( lc_child_name.equals( "content" ) && feed.isAtomFeed()){
-						
-						SimpleXMLParserDocumentAttribute srcAtt = child.getAttribute( "src" );
-						
-						String	src = srcAtt==null?null:srcAtt.getValue();
-									
-						if ( src != null ){
-							
-							boolean	is_dl_link = false;
-							
-							SimpleXMLParserDocumentAttribute typeAtt = child.getAttribute( "type" );
-							
-							if ( typeAtt != null && typeAtt.getValue().equalsIgnoreCase("application/x-bittorrent")) {
-
-								is_dl_link = true;
-							}
-							
-							if ( !is_dl_link ){
-							
-								is_dl_link = src.toLowerCase().indexOf( ".torrent" ) != -1;
-							}
-								
-							if ( is_dl_link ){
-								
-								try{
-									new URL( src );
-								
-									dl_link = src;
-									
-								}catch( Throwable e ){
-								}
-							}
-						}
-						
-					}else if ( lc_child_name.equals( "description" )){
-								
-						description = value;
-						
-						Pattern pattern = mapping.desc_link_pattern;
-						
-						if ( pattern != null ){
-						
-							desc_dl_link = extractLinkFromDescription( pattern, description );
-						}
-					}else if ( lc_full_child_name.equals( "vuze:size" )){
-						
-						try{
-							size = Long.parseLong( value );
-							
-						}catch( Throwable e ){
-						}
-					}else if ( lc_full_child_name.equals( "vuze:seeds" ) || lc_full_child_name.equals( "torrent:seeds" )){
-						
-						try{
-							seeds = Long.parseLong( value );
-							
-						}catch( Throwable e ){
-						}
-					
-					}else if ( lc_full_child_name.equals( "vuze:peers" ) || lc_full_child_name.equals( "torrent:peers" )){
-						
-						try{
-							leechers = Long.parseLong( value );
-							
-						}catch( Throwable e ){
-						}
-						
-					
-						
-					}else if ( lc_full_child_name.equals( "vuze:downloadurl" )){
-
-						dl_link = value;
-						
-					}else if ( lc_full_child_name.equals( "vuze:assethash" )){
-
-						hash = value;	// base32
-						
-					}else if ( lc_full_child_name.equals( "torrent:infoHash" )){
-
-						hash = value;	// base 16, hmmmm, be consistent
-						
-						if ( hash.length() == 40 ){
-							
-							hash = Base32.encode( ByteFormatter.decodeString( hash ));
-						}
-					}else if (  lc_full_child_name.equals( "media:thumbnail" )){
-						
-						thumb_link = child.getAttribute( "url" ).getValue().trim();
-					}
+					desc_dl_link = extractLinkFromDescription( pattern, description );
 				}
 				
 				if ( desc_dl_link != null ){
@@ -1082,67 +1257,62 @@ RSSToChat
 				}
 				
 				
-				String magnet = buildMagnetHead( mapping, dl_link, cdp_link, hash, title_short );
-				
-				String history_key = magnet;
+				String magnet = MagnetBuilder.buildHead( mapping.getTrackerSelector(), dl_link, cdp_link, hash, title_short );
 				
-					// unfortunately if the magnet link is generated from a download with a lot of webseeds then a limited and randomized subset of
-					// these are returned by Vuze - this results in the same download generating multiple distinct magnets which, without processing, 
-					// causes repeat entries in the feed. Solution is to remove &ws= entries if there are more than 4 (for some backward compatability)
+				long history_key = ItemIdentity.getMagnetKey( magnet );
 				
-				String history_key_no_ws = "";
-				
-				String[] bits = history_key.split( "&" );
+				if ( history != null && history.hasPublished( history_key )){
+					
+					continue;
+				}
 				
-				int	num_ws = 0;
+					// items published before keys were canonical are recorded under the old key, adopt
+					// the new key for them so the old one need only be checked once. Not needed once
+					// the history's legacy entries have all aged out
 				
-				for ( String bit: bits ){
+				String legacy_id = null;
 				
-					if ( bit.toLowerCase( Locale.US ).startsWith( "ws=" )){
-						
-						num_ws++;
+				if ( history != null && history.hasLegacyKeys()){
+					
+					legacy_id = getLegacyMagnetId( magnet );
+					
+					if ( history.hasPublished( legacy_id )){
 						
-					}else{
+						history.addKey( history_key );
 						
-						history_key_no_ws += (history_key_no_ws.length()==0?"":"&") + bit;
+						continue;
 					}
 				}
 				
-				if ( num_ws > 4 ){
-					
-					history_key = history_key_no_ws;
-				}
-				
-				if ( history != null && history.hasPublished( history_key )){
-					
-					continue;
-				}
-				
 				if ( presentation_is_link ){
 					
 					boolean do_posting = !mapping.hasFlag( Mapping.FLAG_NO_POST );
 					
-					magnet = buildMagnetTail(magnet, dl_link, cdp_link, title_short, size, item_time, seeds, leechers );
+					magnet = MagnetBuilder.buildTail( magnet, dl_link, cdp_link, title_short, size, item_time, seeds, leechers, MAX_MESSAGE_SIZE );
 					
-					if ( do_posting ){
+						// the rest are picked up once the queue has drained
 					
-						inst.sendMessage( magnet, new HashMap<String, Object>());
+					if ( do_posting && !mapping.getPoster().post( inst, magnet )){
+						
+						try_again = true;
+						
+						break;
 					}
 					
 					history.setPublished( history_key, item_time );
 					
 					posted++;
+				}else{
 					
-					if ( posted >= MAX_POSTS_PER_REFRESH && do_posting ){
-						
-						try_again = true;
+						// site items are still filed under the old id
+					
+					if ( legacy_id == null ){
 						
-						break;
+						legacy_id = getLegacyMagnetId( magnet );
 					}
-				}else{
 					
 					extractSiteItem(
-						history, history_key, item_time,
+						history, legacy_id, history_key, item_time,
 						title, description, hash, size,
 						seeds, leechers,
 						dl_link, cdp_link, thumb_link );
@@ -1155,15 +1325,25 @@ RSSToChat
 			
 			if ( presentation_is_link ){
 				
-				log( "    Posted " + posted + " new results" );
+				log( "    Posted " + posted + " new results" + getQueuedText( mapping ));
 
 			}else{
 				
 				if ( site_updated ){
 					
-					updateSite( mapping, inst, channel.getTitle(), history );
+					updateSite( mapping, inst, feed.getTitle(), history );
 				}
 			}
+			
+			mapping.recordRefresh( history.getPublishCount() - published_before, try_again );
+			
+				// only remember the validators/digest once everything in this version of the feed has
+				// been dealt with, otherwise we'd never see the remaining items
+			
+			if ( !try_again ){
+				
+				history.setFetchState( fetch.getETag(), fetch.getLastModified(), digest );
+			}
 		}catch( Throwable e ){
 			
 			try_again = true;
@@ -1224,6 +1404,8 @@ RSSToChat
 		boolean	try_again 		= false;
 		boolean	site_updated	= force;
 		
+		int	published_before = history.getPublishCount();
+		
 		Subscription[] subscriptions = SubscriptionManagerFactory.getSingleton().getSubscriptions();
 		
 		String presentation = mapping.getPresentation();
@@ -1428,18 +1610,22 @@ RSSToChat
 								
 								byte[] message = hackRawLink( link );
 								
-								if ( do_posting ){
-								
-									chat.sendRawMessage( message, new HashMap<String, Object>(), new HashMap<String, Object>());
+								if ( do_posting && !mapping.getPoster().post( chat, message )){
+									
+									try_again = true;
+									
+									break;
 								}
 							}else{
-								String magnet = buildMagnetHead( mapping, dl_link, cdp_link, "", title );
+								String magnet = MagnetBuilder.buildHead( mapping.getTrackerSelector(), dl_link, cdp_link, "", title );
 								
-								magnet = buildMagnetTail( magnet, dl_link, cdp_link, title, size, result_time, seeds, leechers );
+								magnet = MagnetBuilder.buildTail( magnet, dl_link, cdp_link, title, size, result_time, seeds, leechers, MAX_MESSAGE_SIZE );
 							
-								if ( do_posting ){
+								if ( do_posting && !mapping.getPoster().post( chat, magnet )){
 									
-									chat.sendMessage( magnet, new HashMap<String, Object>());
+									try_again = true;
+									
+									break;
 								}
 							}
 							
@@ -1451,17 +1637,10 @@ RSSToChat
 							}
 							
 							posted++;
-							
-							if ( posted >= MAX_POSTS_PER_REFRESH && do_posting ){
-								
-								try_again = true;
-								
-								break;
-							}
 						}else{
 							
 							extractSiteItem(
-									history, history_key, result_time,
+									history, history_key, getLongKey( history_key ), result_time,
 									title, null, hash, size, seeds, leechers,
 									dl_link, cdp_link, null );
 									
@@ -1492,18 +1671,22 @@ RSSToChat
 								
 								byte[] message = hackRawLink( link );
 								
-								if ( do_posting ){
-								
-									chat.sendRawMessage( message, new HashMap<String, Object>(), new HashMap<String, Object>());
+								if ( do_posting && !mapping.getPoster().post( chat, message )){
+									
+									try_again = true;
+									
+									break;
 								}
 							}else{
-								String magnet = buildMagnetHead( mapping, dl_link, cdp_link, hash, title );
+								String magnet = MagnetBuilder.buildHead( mapping.getTrackerSelector(), dl_link, cdp_link, hash, title );
 								
-								magnet = buildMagnetTail(magnet, dl_link, cdp_link, title, size, result_time, seeds, leechers );					
+								magnet = MagnetBuilder.buildTail( magnet, dl_link, cdp_link, title, size, result_time, seeds, leechers, MAX_MESSAGE_SIZE );					
 							
-								if ( do_posting ){
-								
-									chat.sendMessage( magnet, new HashMap<String, Object>());
+								if ( do_posting && !mapping.getPoster().post( chat, magnet )){
+									
+									try_again = true;
+									
+									break;
 								}
 							}
 							
@@ -1515,17 +1698,10 @@ RSSToChat
 							}
 							
 							posted++;
-							
-							if ( posted >= MAX_POSTS_PER_REFRESH && do_posting ){
-								
-								try_again = true;
-								
-								break;
-							}
 						}else{
 							
 							extractSiteItem(
-									history, history_key, result_time,
+									history, history_key, getLongKey( history_key ), result_time,
 									title, null, hash, size, seeds, leechers,
 									dl_link, cdp_link, null );
 									
@@ -1540,7 +1716,7 @@ RSSToChat
 					
 					if ( do_posting ){
 					
-						log( "    Posted " + posted + " new results" );
+						log( "    Posted " + posted + " new results" + getQueuedText( mapping ));
 						
 					}else{
 						
@@ -1556,7 +1732,11 @@ RSSToChat
 			}
 		}
 		
-		if ( !subs_found ){
+		if ( subs_found ){
+			
+			mapping.recordRefresh( history.getPublishCount() - published_before, try_again );
+			
+		}else{
 			
 			log( "Subscription '" + subscription_name + "' not found" );
 		}
@@ -1569,7 +1749,8 @@ RSSToChat
 	private void
 	extractSiteItem(
 		History		history,
-		String		history_key,
+		String		item_id,
+		long		history_key,
 		long		item_time,
 		String		title,
 		String		description,
@@ -1581,9 +1762,9 @@ RSSToChat
 		String		cdp_link,
 		String		thumb_link )
 	{
-		File item_folder = history.getItemFolder( history_key, item_time );
+		File item_folder = history.getItemFolder( item_id, item_time );
 			
-		String item_key = Base32.encode( getKey( history_key ));
+		String item_key = Base32.encode( getKey( item_id ));
 		
 		String	torrent_file_name 	= null;
 		String	thumb_file_name 	= null;
@@ -1619,7 +1800,7 @@ RSSToChat
 							
 								if ( !tf.exists()){
 							
-									FileUtil.copyFile( new ResourceDownloaderFactoryImpl().create( dl_url ).download(), tf );
+									http_client.download( dl_url, tf, MAX_TORRENT_SIZE );
 							
 									log( "Downloaded torrent: " + dl_url );
 									
@@ -1640,7 +1821,7 @@ RSSToChat
 					
 						if ( !tf.exists()){
 					
-							FileUtil.copyFile( new ResourceDownloaderFactoryImpl().create( dl_url ).download(), tf );
+							http_client.download( dl_url, tf, MAX_TORRENT_SIZE );
 					
 							log( "Downloaded torrent: " + dl_url );
 							
@@ -1698,7 +1879,7 @@ RSSToChat
 				
 				if ( !thumb_file.exists()){
 				
-					FileUtil.copyFile( new ResourceDownloaderFactoryImpl().create( thumb_url ).download(), thumb_file);
+					http_client.download( thumb_url, thumb_file, MAX_THUMB_SIZE );
 				
 					log( "Download thumb: " + thumb_url );
 				}
@@ -2172,7 +2353,7 @@ RSSToChat
 			
 			log( "Torrent created: " + torrent_file );
 			
-			String magnet = buildMagnetHead( mapping, null, null, Base32.encode( hash ), torrent_title );
+			String magnet = MagnetBuilder.buildHead( mapping.getTrackerSelector(), null, null, Base32.encode( hash ), torrent_title );
 			
 			magnet += "&xl="  + torrent.getSize();
 			magnet += "&pfi=" + primary_file_index;
@@ -2188,7 +2369,7 @@ RSSToChat
 
 			if ( do_posting ){
 			
-				inst.sendMessage( magnet, new HashMap<String, Object>());
+				mapping.getPoster().post( inst, magnet );
 			}
 			
 			log( "Posted site update" );
@@ -2311,356 +2492,1587 @@ RSSToChat
 		return( XUXmlWriter.escapeXML( str ));
 	}
 	
+		// the item id used before ItemIdentity, the magnet head with webseeds removed if there are
+		// more than 4 of them. Webseeds could be a limited and randomized subset of a download's so
+		// the same download generated distinct magnets. Still used to name website items
+	
 	private String
-	encodeTitle(
-		String		title,
-		String		dl_link,
-		String		cdp_link )
+	getLegacyMagnetId(
+		String		magnet )
 	{
-		if ( title.endsWith( "..." )){
-			
-			return( UrlUtils.encode( title ));
-		}
-		
-		int	baggage = (dl_link==null?0:UrlUtils.encode(dl_link).length()) + (cdp_link==null?0:UrlUtils.encode(cdp_link).length());
-		
-		int MAX_TITLE = 240 - (3*baggage)/5;	// 100->180, 200->120 ...
-		
-		MAX_TITLE = Math.min( Math.max( MAX_TITLE, 80 ), 180 );
+		StringBuilder	no_ws = new StringBuilder( magnet.length());
 		
-		boolean	truncated = false;
+		int	num_ws	= 0;
+		int	pos		= 0;
 		
-		String str;
-		
-		while( true ){
-		
-			str = UrlUtils.encode( title );
+		while( pos <= magnet.length()){
 			
-			if ( str.length() <= MAX_TITLE ){
+			int	end = magnet.indexOf( '&', pos );
+			
+			if ( end == -1 ){
 				
-				break;
+				end = magnet.length();
 			}
 			
-			title = title.substring( 0, title.length() - 1 );
-			
-			if ( !truncated ){
-			
-				truncated = true;
+			if ( magnet.regionMatches( true, pos, "ws=", 0, 3 )){
+				
+				num_ws++;
+				
+			}else{
+				
+				if ( no_ws.length() > 0 ){
+					
+					no_ws.append( '&' );
+				}
 				
-				MAX_TITLE -= 3;
+				no_ws.append( magnet, pos, end );
 			}
-		}
-		
-		if ( truncated ){
 			
-			str += "...";
+			pos = end + 1;
 		}
 		
-		return( str );
+		return( num_ws > 4?no_ws.toString():magnet );
 	}
 	
-	private String
-	buildMagnetHead(
-		Mapping		mapping,
-		String		dl_link,
-		String		cdp_link,
-		String		hash,
-		String		title )
+	private byte[]
+	getKey(
+		String		str )
 	{
-		String magnet;
-		
-		if ( dl_link != null && dl_link.toLowerCase(Locale.US).startsWith( "magnet:" )){
+		try{
+			byte[] temp = new SHA1Simple().calculateHash( str.getBytes( "UTF-8" ));
 			
-				// could be a load of stuff in an existing magnet that will blow limits
+			byte[] result = new byte[8];
 			
-			boolean is_public = mapping.getNetwork() == AENetworkClassifier.AT_PUBLIC;
+			System.arraycopy( temp, 0, result, 0, 8 );
 			
-			String[] bits = dl_link.split( "&" );
+			return( result );
 			
-			magnet = "";
+		}catch( Throwable e){
+	
+			Debug.out( e );
 			
-			List<URL>	trackers = new ArrayList<>();
+			return( new byte[8] );
+		}
+	}
+	
+		// history key for an id, see History for how keys written by earlier versions are handled
+	
+	private static long
+	getLongKey(
+		String		str )
+	{
+		return( FastHash.hash64( str ));
+	}
+	
+		// the history key for an id before HISTORY_KEY_VERSION 2, same as getKey but as a long
+	
+	private static long
+	getLegacyLongKey(
+		String		str )
+	{
+		try{
+			return( LongHistorySet.toLong( new SHA1Simple().calculateHash( str.getBytes( "UTF-8" ))));
 			
-			for ( String bit: bits ){
-				
-				String[] temp = bit.split( "=" );
-				
-				if ( temp.length == 2 ){
-					
-					String lhs = temp[0].toLowerCase( Locale.US );
-					String rhs = UrlUtils.decode( temp[1] );
-					
-					if ( lhs.equals( "tr" )){
-						
-						try{
-							trackers.add( new URL( rhs ));
-							
-							continue;
-							
-						}catch( Throwable e ){
-							
-						}
-						
-					}else if ( lhs.equals( "fl" )){
-						
-						if ( rhs.contains( "127.0.0.1" )){
-							
-							continue;
-						}
-					}
-				}
-				
-				magnet += magnet.isEmpty()?bit:("&" + bit );
-			}
+		}catch( Throwable e){
+	
+			Debug.out( e );
 			
-			if ( trackers.size() > 0 ){
-				
-				URL selected = trackers.get(0);
-				
-				for ( URL u: trackers ){
-					
-					boolean p = AENetworkClassifier.categoriseAddress( u.getHost()) == AENetworkClassifier.AT_PUBLIC;
-					
-					if ( p == is_public ){
-						
-						selected = u;
-						
-						break;
-					}
-				}
-				
-				String tr = "tr=" + UrlUtils.encode( selected.toExternalForm());
-				
-				magnet += magnet.isEmpty()?tr:("&" + tr );
-			}
-		}else{
-		
-			magnet = 
-				"magnet:?xt=urn:btih:" + hash + 
-				"&dn=" + encodeTitle( title, dl_link, cdp_link ) + 
-				((dl_link==null||dl_link.contains( "127.0.0.1"))?"":("&fl=" + UrlUtils.encode( dl_link )));
+			return( 0 );
 		}
-		
-		return( magnet );
 	}
 	
-	private String
-	buildMagnetTail(
-		String		magnet,
-		String		dl_link,
-		String		cdp_link,
-		String		title,
-		long		size,
-		long		time,
-		long		seeds,
-		long		leechers )
-		
+		// history entries record the minute they were added, enough resolution for age limits
+	
+	private static int
+	getCurrentMins()
 	{
-		final int MAX_CDP_LINK	= 140;
-		
-		int	length_rem = MAX_MESSAGE_SIZE;
-		
-		String lc_magnet = magnet.toLowerCase( Locale.US );
-		
-		if ( !lc_magnet.contains( "&dn=" )){	
-			magnet += "&dn=" + encodeTitle( title, dl_link, cdp_link );
+		return((int)( SystemTime.getCurrentTime()/(60*1000)));
+	}
+	
+	@Override
+	public void
+	unload() 
+			
+		throws PluginException
+	{
+		if ( config_model != null ){
+			
+			config_model.destroy();
+			
+			config_model = null;
 		}
 		
-		if ( size != -1 ){
-			if ( !lc_magnet.contains( "&xl=" )){
-				magnet += "&xl="  + size;
-			}
+		if ( view_model != null ){
+			
+			view_model.destroy();
+			
+			view_model = null;
 		}
 		
-		if ( seeds != -1 ){
-			magnet += "&_s="  + seeds;
-		}
+		List<Mapping>	old_mappings;
 		
-		if ( leechers != -1 ){
-			magnet += "&_l="  + leechers;
+		synchronized( mappings ){
+			
+			unloaded	= true;
+			
+			if ( scheduler != null ){
+				
+				scheduler.destroy();
+			}
+			
+			old_mappings = new ArrayList<Mapping>( mappings );
+			
+			for ( Mapping mapping: mappings ){
+				
+				mapping.destroy();
+			}
+			
+			mappings.clear();
 		}
 		
-		if ( time > 0 ){
-			magnet += "&_d="  + time;
-		}
+			// refreshes already handed to refresh_pool would otherwise carry on against the histories
+			// and posters closed below. Queued ones exit as soon as they run as their mapping is destroyed
 		
-		boolean	has_cdp = cdp_link != null && ( dl_link == null || !cdp_link.equals( dl_link ));
+		long	wait_until = SystemTime.getMonotonousTime() + REFRESH_UNLOAD_WAIT;
 		
-		if ( has_cdp ){
+		for ( Mapping mapping: old_mappings ){
 			
-			String encoded_cdp = UrlUtils.encode( cdp_link );
-			
-			if ( encoded_cdp.length() > MAX_CDP_LINK ){
+			if ( !mapping.waitForUpdate( wait_until )){
 				
-				has_cdp = false;
+				log( "Timeout waiting for refresh of " + mapping.getSourceName() + " to complete" );
 				
-			}else{
-			
-				magnet += "&_c=" + encoded_cdp;
+				break;
 			}
 		}
 		
-		length_rem -= magnet.length();
+		if ( history_flush_timer != null ){
+			
+			history_flush_timer.cancel();
+			
+			history_flush_timer = null;
+		}
 		
-		final String tail_min = "[[$dn]]";
+		flushHistories();
 		
-		String tail = tail_min;
+		closeHistories( Collections.<String>emptySet());
 		
-		String info = "";
+		closePosters( Collections.<String>emptySet(), true );
 		
-		if ( size > 0 ){
-			
-			info = DisplayFormatters.formatByteCountToKiBEtc( size );
-		}
+		feed_cache.clear();
+	}
+	
+		// histories are shared by successive Mapping instances for the same source and chat so that
+		// a config reload doesn't reload them. A history is reopened if its store settings change.
+		// Opening can mean importing another store's files so it is done outside the 'histories'
+		// monitor, anyone else wanting the same history waits for it
+	
+	private History
+	getHistory(
+		Mapping		mapping )
+	{
+		String	history_key = mapping.getHistoryKey();
 		
-		if ( time > 0 ){
-			info += (info==""?"":", ")+new SimpleDateFormat( "yyyy/MM/dd").format( new Date( time ));
-		}
-
-		if ( has_cdp ){
-			
-			info += (info==""?"":", ") + "\"$_c[[details]]\"";
-		}
+		History	old_history;
 		
-		if ( info != "" ){
+		synchronized( histories ){
+			
+			while( histories_opening.contains( history_key )){
+				
+				try{
+					histories.wait();
+					
+				}catch( InterruptedException e ){
+					
+					Debug.out( e );
+				}
+			}
 			
-			tail += " (" + info + ")";
+			History history = histories.get( history_key );
+			
+			if ( history != null && history.isCompatible( mapping )){
+				
+				return( history );
+			}
+			
+			old_history = histories.remove( history_key );
+			
+			histories_opening.add( history_key );
 		}
 		
-		if ( tail.length() < length_rem ){
+		History history = null;
+		
+		try{
+			if ( old_history != null ){
+				
+				old_history.close();
+			}
 			
-			magnet += tail;
+			history = new History( mapping );
 			
-		}else{
+			return( history );
 			
-			magnet += tail_min;
+		}finally{
+			
+			synchronized( histories ){
+				
+				histories_opening.remove( history_key );
+				
+				if ( history != null ){
+					
+					histories.put( history_key, history );
+				}
+				
+				histories.notifyAll();
+			}
 		}
-		
-		return( magnet );
 	}
 	
-	private byte[]
-	getKey(
-		String		str )
+		// posters are per chat and, like histories, outlive config reloads so that a queued backlog
+		// isn't lost. The limits of the most recently loaded mapping apply. A poster's queue is
+		// restored from disk when its chat is next loaded
+	
+	private ChatPoster
+	getPoster(
+		Mapping		mapping )
 	{
-		try{
-			byte[] temp = new SHA1Simple().calculateHash( str.getBytes( "UTF-8" ));
-			
-			byte[] result = new byte[8];
+		String	poster_key = mapping.getPosterKey();
+		
+		synchronized( posters ){
 			
-			System.arraycopy( temp, 0, result, 0, 8 );
+			ChatPoster poster = posters.get( poster_key );
 			
-			return( result );
+			if ( poster == null ){
+				
+				File	file = new File( history_dir, Base32.encode( getKey( poster_key )) + ".pq" );
+				
+				poster = new ChatPoster( mapping.getChatName(), file, mapping.getPostRate(), mapping.getPostBurst());
+				
+				posters.put( poster_key, poster );
+				
+			}else{
+				
+				poster.setLimits( mapping.getPostRate(), mapping.getPostBurst());
+			}
 			
-		}catch( Throwable e){
+			return( poster );
+		}
+	}
 	
-			Debug.out( e );
+	private String
+	getQueuedText(
+		Mapping		mapping )
+	{
+		int	queued = mapping.getPoster().getQueueSize();
+		
+		return( queued==0?"":( ", " + queued + " queued for posting" ));
+	}
+	
+		// posters for chats that are no longer configured are kept while they have posts queued, their
+		// items are already recorded as published so the posts would otherwise never be made. They
+		// resume if the chat is configured again
+	
+	private void
+	closePosters(
+		Set<String>		retain,
+		boolean			unloading )
+	{
+		synchronized( posters ){
 			
-			return( new byte[8] );
+			Iterator<Map.Entry<String,ChatPoster>> it = posters.entrySet().iterator();
+			
+			while( it.hasNext()){
+				
+				Map.Entry<String,ChatPoster> entry = it.next();
+				
+				ChatPoster poster = entry.getValue();
+				
+				if ( !retain.contains( entry.getKey())){
+					
+					if ( !unloading && poster.getQueueSize() > 0 ){
+						
+						continue;
+					}
+					
+					poster.destroy();
+					
+					it.remove();
+				}
+			}
 		}
 	}
 	
-	@Override
-	public void
-	unload() 
-			
-		throws PluginException
+	private void
+	setHistoryDirty(
+		History		history )
 	{
-		if ( config_model != null ){
+		synchronized( dirty_histories ){
 			
-			config_model.destroy();
-			
-			config_model = null;
+			dirty_histories.add( history );
 		}
+	}
+	
+	private void
+	flushHistories()
+	{
+		List<History>	to_save;
 		
-		if ( view_model != null ){
+		synchronized( dirty_histories ){
 			
-			view_model.destroy();
+			if ( dirty_histories.isEmpty()){
+				
+				return;
+			}
 			
-			view_model = null;
+			to_save = new ArrayList<History>( dirty_histories );
+			
+			dirty_histories.clear();
 		}
 		
-		synchronized( mappings ){
-			
-			unloaded	= true;
+		for ( History history: to_save ){
 			
-			if ( timer != null ){
+			try{
+				history.save();
 				
-				timer.cancel();
+			}catch( Throwable e ){
 				
-				timer = null;
+				Debug.out( e );
 			}
+		}
+	}
+	
+	private void
+	closeHistories(
+		Set<String>		retain )
+	{
+		synchronized( histories ){
 			
-			for ( Mapping mapping: mappings ){
+				// let any being opened complete so that they are closed too
+			
+			while( !histories_opening.isEmpty()){
 				
-				mapping.destroy();
+				try{
+					histories.wait();
+					
+				}catch( InterruptedException e ){
+					
+					Debug.out( e );
+					
+					break;
+				}
 			}
 			
-			mappings.clear();
+			Iterator<Map.Entry<String,History>> it = histories.entrySet().iterator();
+			
+			while( it.hasNext()){
+				
+				Map.Entry<String,History> entry = it.next();
+				
+				if ( !retain.contains( entry.getKey())){
+					
+					entry.getValue().close();
+					
+					it.remove();
+				}
+			}
 		}
 	}
 	
+		// per-chat outbound queue. Posts are spaced by a token bucket shared by all mappings to the chat
+		// and are only ever sent from post_dispatcher (single threaded, so there is one drainer at a time)
+		// - refreshes just queue them. The queue is mirrored in a PostQueueFile so that posts for items
+		// already recorded as published survive a restart
+	
 	private class
-	Mapping
+	ChatPoster
 	{
-		private static final int	TYPE_NORMAL			= 1;
-		private static final int	TYPE_READ_ONLY		= 2;
-		private static final int	TYPE_ADMIN			= 3;
-		
-		private static final int	FLAG_NO_POST		= 0x00000001;
-		
-		private final String		source;
-		private final boolean		is_rss;
-		private final Pattern		desc_link_pattern;
-		private final String		link_type;
-		private final boolean		ignore_dates;
-		private final boolean		publish_unread;
-		private final int			min_seeds;
-		private final int			min_leechers;
-		private final int			type;
-		private final String		nick;
-		private final String		network;
-		private final String		key;
-		
-		private final List<Subscription>	item_associations;
+		private final String		name;
+		private final PostQueueFile	queue_file;
 		
-		private final String		presentation;
-		private final String		website_name;
-		private final int			retain_sites;
-		private final int			retain_items;
+		private int					rate;		// per minute
+		private int					burst;
 		
-		private final int			refresh;
-		private final int			flags;
+		private double				tokens;
+		private long				last_refill;
 		
-		private ChatInstance	chat;
-		private boolean			updating;
-		private boolean			retry_outstanding;
+		private final LinkedList<Object>	queue = new LinkedList<Object>();	// String or byte[] for raw messages
 		
-		private boolean	destroyed;
+		private ChatInstance		chat;
+		private TimerEvent			drain_event;
+		private boolean				drain_scheduled;
+		private boolean				destroyed;
 		
 		private
-		Mapping(
-			String				_source,
-			boolean				_is_rss,
-			Pattern				_desc_link_pattern,
-			String				_link_type,
-			boolean				_ignore_dates,
-			boolean				_publish_unread,
-			int					_min_seeds,
-			int					_min_leechers,
-			String				_network,
-			String				_key,
-			int					_type,
-			String				_nick,
-			String				_presentation,
-			String				_website_name,
-			int					_retain_sites,
-			int					_retain_items,
-			List<Subscription>	_item_associations,
-			int					_refresh,
-			int					_flags )
+		ChatPoster(
+			String		_name,
+			File		_file,
+			int			_rate,
+			int			_burst )
 		{
-			source				= _source;
+			name		= _name;
+			queue_file	= new PostQueueFile( _file );
+			rate		= _rate;
+			burst		= _burst;
+			
+			tokens		= burst;
+			last_refill	= SystemTime.getMonotonousTime();
+			
+			try{
+				queue.addAll( queue_file.read());
+				
+				if ( queue.size() > 0 ){
+					
+					log( "Restored " + queue.size() + " queued posts for '" + name + "'" );
+				}
+			}catch( Throwable e ){
+				
+					// kept for inspection rather than deleted
+				
+				File	bad = new File( _file.getParentFile(), _file.getName() + ".bad" );
+				
+				bad.delete();
+				
+				log( "Failed to read post queue for '" + name + "', moved to " + bad, e );
+				
+				if ( !_file.renameTo( bad )){
+					
+					queue_file.delete();
+				}
+			}
+		}
+		
+		private synchronized void
+		setLimits(
+			int		_rate,
+			int		_burst )
+		{
+			refill();
+			
+			rate	= _rate;
+			burst	= _burst;
+			
+			tokens	= Math.min( tokens, burst );
+		}
+		
+		private synchronized void
+		setChat(
+			ChatInstance	_chat )
+		{
+			chat = _chat;
+			
+			scheduleDrain();
+		}
+		
+			// returns false if the post can't be queued (queue full or not persisted), the caller
+			// mustn't record the item as published
+		
+		private synchronized boolean
+		post(
+			ChatInstance	_chat,
+			Object			message )
+		{
+			if ( destroyed || queue.size() >= MAX_QUEUED_POSTS ){
+				
+				return( false );
+			}
+			
+			try{
+				queue_file.append( message );
+				
+			}catch( Throwable e ){
+				
+					// the queue and its file must hold the same posts
+				
+				log( "Failed to persist queued post for '" + name + "'", e );
+				
+				return( false );
+			}
+			
+			chat = _chat;
+			
+			queue.add( message );
+			
+			scheduleDrain();
+			
+			return( true );
+		}
+		
+		private synchronized int
+		getQueueSize()
+		{
+			return( queue.size());
+		}
+		
+		private void
+		refill()
+		{
+			long	now = SystemTime.getMonotonousTime();
+			
+			tokens = Math.min( burst, tokens + ( now - last_refill ) * rate / ( 60*1000.0 ));
+			
+			last_refill = now;
+		}
+		
+		private synchronized void
+		scheduleDrain()
+		{
+			if ( destroyed || drain_scheduled || drain_event != null || queue.isEmpty()){
+				
+				return;
+			}
+			
+			drain_scheduled = true;
+			
+			post_dispatcher.dispatch(
+				new AERunnable()
+				{
+					@Override
+					public void
+					runSupport()
+					{
+						drain();
+					}
+				});
+		}
+		
+			// runs on post_dispatcher. The monitor isn't held while sending so that refreshes can
+			// carry on queueing posts during a slow delivery
+		
+		private void
+		drain()
+		{
+			while( true ){
+				
+				Object			message;
+				ChatInstance	target;
+				
+				synchronized( this ){
+					
+					drain_scheduled = false;
+					
+					if ( destroyed || queue.isEmpty()){
+						
+						return;
+					}
+					
+					if ( chat == null || chat.isDestroyed()){
+						
+							// wait for the mapping to supply a new instance on its next refresh
+						
+						return;
+					}
+					
+					refill();
+					
+					if ( tokens < 1 ){
+						
+						scheduleDrainEvent((long)Math.ceil(( 1 - tokens ) * 60*1000 / rate ));
+						
+						return;
+					}
+					
+					tokens -= 1;
+					
+					message	= queue.getFirst();
+					target	= chat;
+				}
+				
+				try{
+					if ( message instanceof String ){
+						
+						target.sendMessage((String)message, new HashMap<String, Object>());
+						
+					}else{
+						
+						target.sendRawMessage((byte[])message, new HashMap<String, Object>(), new HashMap<String, Object>());
+					}
+				}catch( Throwable e ){
+					
+						// leave it at the head of the queue and try again later
+					
+					log( "Failed to post to '" + name + "', retrying", e );
+					
+					synchronized( this ){
+						
+						if ( !destroyed ){
+						
+							scheduleDrainEvent( POST_RETRY_PERIOD );
+						}
+					}
+					
+					return;
+				}
+				
+				synchronized( this ){
+					
+						// only this thread removes from the head, although destroy may have emptied the queue
+						// meanwhile. The message is still at the head of the retained file in either case
+					
+					if ( !queue.isEmpty()){
+						
+						queue.removeFirst();
+					}
+					
+					try{
+						queue_file.removeFirst();
+						
+					}catch( Throwable e ){
+						
+						log( "Failed to update post queue for '" + name + "'", e );
+					}
+				}
+			}
+		}
+		
+		private void
+		scheduleDrainEvent(
+			long		delay )
+		{
+			if ( drain_event != null ){
+				
+				return;
+			}
+			
+			drain_event = 
+				SimpleTimer.addEvent(
+					"RSSToChat:post",
+					SystemTime.getCurrentTime() + Math.max( delay, 1 ),
+					new TimerEventPerformer()
+					{
+						@Override
+						public void
+						perform(
+							TimerEvent event )
+						{
+							synchronized( ChatPoster.this ){
+								
+								drain_event = null;
+								
+								scheduleDrain();
+							}
+						}
+					});
+		}
+		
+			// the queue is kept on disk for next time, whether or not the chat is still configured.
+			// An empty queue's file is removed
+		
+		private synchronized void
+		destroy()
+		{
+			destroyed = true;
+			
+			if ( drain_event != null ){
+				
+				drain_event.cancel();
+				
+				drain_event = null;
+			}
+			
+			if ( queue.isEmpty()){
+				
+				queue_file.delete();
+				
+			}else{
+				
+				log( "Retained " + queue.size() + " queued posts for '" + name + "'" );
+				
+				queue.clear();
+			}
+		}
+	}
+	
+		// tracks consecutive fetch failures per source host. A failing host is 'open' for an exponentially
+		// increasing period during which its mappings don't fetch. Once that expires a single mapping is
+		// allowed through as a probe ('half-open') and its result either closes or re-opens the host
+	
+	private class
+	SourceHealthTracker
+	{
+		private static final int	STATE_OPEN		= 1;
+		private static final int	STATE_HALF_OPEN	= 2;
+		
+		private static final long	BACKOFF_MIN		= 60*1000;
+		private static final long	BACKOFF_MAX		= 4*60*60*1000;
+		
+		private final Map<String,HostStatus>	hosts = new HashMap<String, HostStatus>();
+		
+		private boolean
+		isAvailable(
+			String		host )
+		{
+			synchronized( hosts ){
+				
+				HostStatus status = hosts.get( host );
+				
+				if ( status == null ){
+					
+					return( true );
+				}
+				
+				if ( status.state == STATE_OPEN && SystemTime.getMonotonousTime() >= status.retry_at ){
+					
+					status.state = STATE_HALF_OPEN;
+					
+					log( "Source host '" + host + "' back-off expired, probing" );
+					
+					return( true );
+				}
+				
+				return( false );
+			}
+		}
+		
+		private void
+		reportSuccess(
+			String		host )
+		{
+			synchronized( hosts ){
+				
+				HostStatus status = hosts.remove( host );
+				
+				if ( status != null ){
+					
+					log( "Source host '" + host + "' recovered after " + status.failures + " failure(s)" );
+				}
+			}
+		}
+		
+		private void
+		reportFailure(
+			String		host,
+			Throwable	error )
+		{
+			synchronized( hosts ){
+				
+				HostStatus status = hosts.get( host );
+				
+				if ( status == null ){
+					
+					status = new HostStatus();
+					
+					hosts.put( host, status );
+					
+				}else if ( status.state == STATE_OPEN ){
+					
+						// already reported by another mapping sharing the fetch or host. Failures aren't
+						// cached by the FeedCache so this is the same failure (or one from a fetch that
+						// started before the back-off) - the back-off is already armed, including when a
+						// half-open probe raced with it, so counting it again would just inflate it
+					
+					return;
+				}
+				
+				status.failures++;
+				
+				long	backoff = BACKOFF_MIN << Math.min( status.failures - 1, 16 );
+				
+				backoff = Math.min( backoff, BACKOFF_MAX );
+				
+				status.state	= STATE_OPEN;
+				status.retry_at	= SystemTime.getMonotonousTime() + backoff;
+				
+				log( "Source host '" + host + "' failed (" + status.failures + " consecutive): " + Debug.getNestedExceptionMessage( error ) + " - backing off for " + formatPeriod( backoff ));
+			}
+		}
+		
+			// earliest time a refresh against the host is worth attempting, 0 if now
+		
+		private long
+		getRetryTime(
+			String		host )
+		{
+			synchronized( hosts ){
+				
+				HostStatus status = hosts.get( host );
+				
+				if ( status == null || status.state != STATE_OPEN ){
+					
+					return( 0 );
+				}
+				
+				return( status.retry_at );
+			}
+		}
+		
+		private String
+		getStatus(
+			String		host )
+		{
+			synchronized( hosts ){
+				
+				HostStatus status = hosts.get( host );
+				
+				if ( status == null ){
+					
+					return( "ok" );
+				}
+				
+				if ( status.state == STATE_HALF_OPEN ){
+					
+					return( "being probed after " + status.failures + " failure(s)" );
+				}
+				
+				long	rem = Math.max( 0, status.retry_at - SystemTime.getMonotonousTime());
+				
+				return( "backing off after " + status.failures + " failure(s), " + formatPeriod(( rem / 1000 ) * 1000 ) + " remaining" );
+			}
+		}
+		
+		private class
+		HostStatus
+		{
+			private int		state;
+			private int		failures;
+			private long	retry_at;
+		}
+	}
+	
+		// mappings that share an RSS url (e.g. network 'both') are phased by the url so, given the same
+		// refresh period, they refresh at around the same time and the feed is fetched and parsed once
+		// and handed to all of them. Concurrent requests for the same url (and validators) wait on the
+		// one in progress and successful results are retained for a short period. Expired results are
+		// pruned by a timer as a url may not be requested again (mapping removed, for example)
+	
+	private class
+	FeedCache
+	{
+		private static final long	CACHE_PERIOD	= 30*1000;
+		
+		private final Map<String,FeedFetch>	fetches 	= new HashMap<String, FeedFetch>();
+		private final Map<String,FeedFetch>	latest_full	= new HashMap<String, FeedFetch>();
+		
+		private TimerEvent					prune_event;
+		
+			// etag and last_modified are the caller's validators from its last processed fetch of
+			// the url, if any. A result of 'not modified' means that nothing has changed since then
+		
+		private FeedFetch
+		getFeed(
+			String		url_str,
+			String		etag,
+			String		last_modified )
+		
+			throws Exception
+		{
+			FeedFetch	fetch;
+			boolean		is_owner = false;
+			
+			synchronized( fetches ){
+				
+				long	now = SystemTime.getMonotonousTime();
+				
+				prune( fetches, now );
+				prune( latest_full, now );
+				
+				FeedFetch full = latest_full.get( url_str );
+				
+				if ( full != null ){
+					
+					log( "    Using shared fetch of " + url_str );
+					
+					if ( full.hasValidators( etag, last_modified )){
+						
+						return( FeedFetch.NOT_MODIFIED );
+					}
+					
+					return( full );
+				}
+				
+				String key = url_str + "\n" + etag + "\n" + last_modified;
+				
+				fetch = fetches.get( key );
+				
+				if ( fetch == null ){
+					
+					fetch = new FeedFetch();
+					
+					fetches.put( key, fetch );
+					
+					is_owner = true;
+					
+				}else{
+					
+					log( "    Waiting for shared fetch of " + url_str );
+				}
+			}
+			
+			if ( is_owner ){
+				
+				try{
+					fetch.setResult( fetchFeed( new URL( url_str ), etag, last_modified ));
+					
+					if ( !fetch.isNotModified()){
+						
+						synchronized( fetches ){
+							
+							latest_full.put( url_str, fetch );
+							
+							schedulePrune();
+						}
+					}
+				}catch( Throwable e ){
+					
+						// failures aren't cached, just shared with anyone already waiting
+					
+					synchronized( fetches ){
+						
+						fetches.values().remove( fetch );
+					}
+					
+					fetch.setError( e );
+				}
+			}
+			
+			return( fetch.getResult());
+		}
+		
+			// caller holds the 'fetches' monitor
+		
+		private void
+		schedulePrune()
+		{
+			if ( prune_event != null ){
+				
+				return;
+			}
+			
+			prune_event = 
+				SimpleTimer.addEvent(
+					"RSSToChat:feedCache",
+					SystemTime.getCurrentTime() + CACHE_PERIOD + 1000,
+					new TimerEventPerformer()
+					{
+						@Override
+						public void
+						perform(
+							TimerEvent event )
+						{
+							synchronized( fetches ){
+								
+								prune_event = null;
+								
+								long	now = SystemTime.getMonotonousTime();
+								
+								prune( fetches, now );
+								prune( latest_full, now );
+								
+								if ( !latest_full.isEmpty()){
+									
+									schedulePrune();
+								}
+							}
+						}
+					});
+		}
+		
+		private void
+		clear()
+		{
+			synchronized( fetches ){
+				
+				if ( prune_event != null ){
+					
+					prune_event.cancel();
+					
+					prune_event = null;
+				}
+				
+				latest_full.clear();
+			}
+		}
+		
+		private void
+		prune(
+			Map<String,FeedFetch>	map,
+			long					now )
+		{
+			Iterator<FeedFetch>	it = map.values().iterator();
+			
+			while( it.hasNext()){
+				
+				if ( it.next().isExpired( now )){
+					
+					it.remove();
+				}
+			}
+		}
+		
+		private FeedFetch
+		fetchFeed(
+			URL			url,
+			String		etag,
+			String		last_modified )
+		
+			throws Exception
+		{
+			FeedReader	reader = new FeedReader();
+			
+			HTTPClient.Response response = http_client.get( url, etag, last_modified, FeedParser.MAX_DOCUMENT_SIZE, reader );
+			
+			if ( response.isNotModified()){
+				
+				return( FeedFetch.NOT_MODIFIED );
+			}
+			
+			FeedParser.Feed	feed = reader.feed;
+			
+			if ( feed == null ){
+				
+					// the DOM parse needs the whole document, fetch it again for this rare case
+				
+				byte[] body = http_client.get( url, null, null, FeedParser.MAX_DOCUMENT_SIZE ).getBody();
+				
+				feed = FeedParser.fromDOM( plugin_interface.getUtilities().getRSSFeed( url, new ByteArrayInputStream( body )));
+				
+				feed.setParseError( Debug.getNestedExceptionMessage( reader.parse_error ));
+			}
+			
+			return( new FeedFetch( feed, reader.sha1.digest(), response.getETag(), response.getLastModified()));
+		}
+	}
+	
+		// parses a feed as it is downloaded, digesting the whole body (the parser stops at the end of
+		// the root element) so that unchanged content can be recognised
+	
+	private static class
+	FeedReader
+		implements HTTPClient.BodyReader
+	{
+		private final MessageDigest	sha1;
+		
+		private FeedParser.Feed		feed;
+		private Throwable			parse_error;
+		
+		private
+		FeedReader()
+		
+			throws Exception
+		{
+			sha1 = MessageDigest.getInstance( "SHA-1" );
+		}
+		
+		@Override
+		public void
+		read(
+			InputStream		is )
+		
+			throws IOException
+		{
+			DigestInputStream	dis = new DigestInputStream( is, sha1 );
+			
+			try{
+				feed = FeedParser.parse( dis );
+				
+			}catch( Throwable e ){
+				
+				parse_error = e;
+			}
+			
+				// the parser doesn't pass on read failures, the size limit is one. The client's
+				// stream keeps failing so they come out of here rather than leading to a DOM parse
+			
+			byte[]	buffer = new byte[16*1024];
+			
+			while( dis.read( buffer ) >= 0 ){
+			}
+		}
+	}
+	
+	private static class
+	FeedFetch
+	{
+		private static final FeedFetch	NOT_MODIFIED = new FeedFetch();
+		
+		static{
+			NOT_MODIFIED.setResult( NOT_MODIFIED );
+		}
+		
+		private final AESemaphore	sem = new AESemaphore( "RSSToChat:fetch" );
+		
+		private volatile long	completed_at	= -1;
+		
+			// the parsed items are retained rather than the document, which can be much larger
+		
+		private FeedParser.Feed		feed;
+		private byte[]				digest;
+		private String				etag;
+		private String				last_modified;
+		private boolean				not_modified;
+		private Throwable			error;
+		
+		private
+		FeedFetch()
+		{
+		}
+		
+		private
+		FeedFetch(
+			FeedParser.Feed		_feed,
+			byte[]				_digest,
+			String				_etag,
+			String				_last_modified )
+		{
+			feed			= _feed;
+			digest			= _digest;
+			etag			= _etag;
+			last_modified	= _last_modified;
+		}
+		
+		private void
+		setResult(
+			FeedFetch	result )
+		{
+			feed			= result.feed;
+			digest			= result.digest;
+			etag			= result.etag;
+			last_modified	= result.last_modified;
+			not_modified	= result == NOT_MODIFIED;
+			
+			completed_at = SystemTime.getMonotonousTime();
+			
+			sem.releaseForever();
+		}
+		
+		private void
+		setError(
+			Throwable	_error )
+		{
+			error	= _error;
+			
+			completed_at = SystemTime.getMonotonousTime();
+			
+			sem.releaseForever();
+		}
+		
+		private boolean
+		isExpired(
+			long	now )
+		{
+			long	ca = completed_at;
+			
+			return( ca >= 0 && now - ca > FeedCache.CACHE_PERIOD );
+		}
+		
+		private FeedFetch
+		getResult()
+		
+			throws Exception
+		{
+			sem.reserve();
+			
+			if ( error != null ){
+				
+				if ( error instanceof Exception ){
+					
+					throw((Exception)error );
+				}
+				
+				throw( new Exception( "Fetch failed", error ));
+			}
+			
+			return( not_modified?NOT_MODIFIED:this );
+		}
+		
+		private boolean
+		isNotModified()
+		{
+			return( not_modified );
+		}
+		
+		private boolean
+		hasValidators(
+			String		_etag,
+			String		_last_modified )
+		{
+			if ( etag == null && last_modified == null ){
+				
+				return( false );
+			}
+			
+			return( 	( etag == null || etag.equals( _etag )) &&
+						( last_modified == null || last_modified.equals( _last_modified )));
+		}
+		
+		private String
+		getETag()
+		{
+			return( etag );
+		}
+		
+		private String
+		getLastModified()
+		{
+			return( last_modified );
+		}
+		
+		private byte[]
+		getDigest()
+		{
+			return( digest );
+		}
+		
+			// shared by all mappings using the fetch, consumers mustn't modify it
+		
+		private FeedParser.Feed
+		getParsedFeed()
+		{
+			return( feed );
+		}
+	}
+	
+	private class
+	RefreshScheduler
+	{
+		private static final long	CHAT_WAIT_PERIOD	= 60*1000;
+		
+			// mappings ordered by next due time - a mapping is removed while being refreshed and
+			// re-queued when it completes so it is never dispatched twice concurrently
+		
+		private final PriorityQueue<Mapping>	queue = 
+			new PriorityQueue<Mapping>(
+				32,
+				new Comparator<Mapping>()
+				{
+					@Override
+					public int
+					compare(
+						Mapping		m1,
+						Mapping		m2 )
+					{
+						return( Long.compare( m1.next_due, m2.next_due ));
+					}
+				});
+		
+		private TimerEvent	event;
+		private long		event_due;
+		
+		private boolean		destroyed;
+		
+		private void
+		setMappings(
+			List<Mapping>	maps )
+		{
+			synchronized( this ){
+				
+				queue.clear();
+				
+				long	now = SystemTime.getMonotonousTime();
+				
+				for ( Mapping map: maps ){
+					
+					map.next_due = now;		// initial load regardless
+					
+					queue.add( map );
+				}
+				
+				schedule( now );
+			}
+		}
+		
+		private void
+		forceRefresh(
+			List<Mapping>	maps )
+		{
+			synchronized( this ){
+				
+				long	now = SystemTime.getMonotonousTime();
+				
+				for ( Mapping map: maps ){
+					
+					map.setForceUpdate();
+					
+						// mappings currently being refreshed pick up the force when they next run
+					
+					if ( queue.remove( map )){
+						
+						map.next_due = now;
+						
+						queue.add( map );
+					}
+				}
+				
+				schedule( now );
+			}
+		}
+		
+		private void
+		requeue(
+			Mapping		map )
+		{
+			synchronized( this ){
+				
+				if ( destroyed || map.isDestroyed()){
+					
+					return;
+				}
+				
+				long	now = SystemTime.getMonotonousTime();
+				
+				map.next_due = map.getNextDue( now );
+				
+				queue.add( map );
+				
+				schedule( now );
+			}
+		}
+		
+		private void
+		schedule(
+			long	not_before )
+		{
+			if ( destroyed ){
+				
+				return;
+			}
+			
+			Mapping head = queue.peek();
+			
+			if ( head == null ){
+				
+				if ( event != null ){
+					
+					event.cancel();
+					
+					event = null;
+				}
+				
+				return;
+			}
+			
+			long	due = Math.max( head.next_due, not_before );
+			
+			if ( event != null ){
+				
+				if ( event_due <= due ){
+					
+					return;
+				}
+				
+				event.cancel();
+			}
+			
+			event_due = due;
+			
+			long	delay = Math.max( 0, due - SystemTime.getMonotonousTime());
+			
+			event = 
+				SimpleTimer.addEvent(
+					"RSSToChat:refresh",
+					SystemTime.getCurrentTime() + delay,
+					new TimerEventPerformer()
+					{
+						@Override
+						public void
+						perform(
+							TimerEvent ev )
+						{
+							fire( ev );
+						}
+					});
+		}
+		
+		private void
+		fire(
+			TimerEvent		ev )
+		{
+			final BuddyPluginBeta bp = BuddyPluginUtils.getBetaPlugin();
+			
+			boolean chat_available = bp != null && bp.isInitialised();
+			
+			List<Mapping>	due = new ArrayList<Mapping>();
+			
+			synchronized( this ){
+				
+				if ( ev != event || destroyed ){
+					
+					return;
+				}
+				
+				event = null;
+				
+				long	now = SystemTime.getMonotonousTime();
+				
+				if ( !chat_available ){
+					
+					schedule( now + CHAT_WAIT_PERIOD );
+					
+				}else{
+					
+					while( true ){
+						
+						Mapping head = queue.peek();
+						
+						if ( head == null || head.next_due > now ){
+							
+							break;
+						}
+						
+						due.add( queue.poll());
+					}
+					
+					schedule( now );
+				}
+			}
+			
+			if ( !chat_available ){
+				
+				log( "Decentralized chat not available (yet)" );
+				
+				return;
+			}
+			
+			for ( final Mapping map: due ){
+				
+				if ( map.reserveUpdate()){
+				
+					refresh_pool.run(
+						new AERunnable()
+						{
+							@Override
+							public void
+							runSupport()
+							{
+								try{
+									map.update( bp );
+									
+								}finally{
+									
+									requeue( map );
+								}
+							}
+						});
+				}else{
+					
+					requeue( map );
+				}
+			}
+			
+			republish.setEnabled( true );
+		}
+		
+		private void
+		destroy()
+		{
+			synchronized( this ){
+				
+				destroyed = true;
+				
+				if ( event != null ){
+					
+					event.cancel();
+					
+					event = null;
+				}
+				
+				queue.clear();
+			}
+		}
+	}
+	
+	private class
+	Mapping
+	{
+		private static final int	TYPE_NORMAL			= 1;
+		private static final int	TYPE_READ_ONLY		= 2;
+		private static final int	TYPE_ADMIN			= 3;
+		
+		private static final int	FLAG_NO_POST		= 0x00000001;
+		
+		private static final int	HISTORY_STORE_JOURNAL	= 1;
+		private static final int	HISTORY_STORE_MAPPED	= 2;
+		
+		private static final long	RETRY_PERIOD		= 60*1000;
+		
+			// adaptive refresh aims for around this many new items per refresh, moving the period by at
+			// most the given factors each time
+		
+		private static final double	ADAPTIVE_TARGET_ITEMS	= 1.0;
+		private static final double	ADAPTIVE_ALPHA			= 0.3;
+		private static final double	ADAPTIVE_MIN_FACTOR		= 0.5;
+		private static final double	ADAPTIVE_MAX_FACTOR		= 1.5;
+		
+		private final String		source;
+		private final boolean		is_rss;
+		private final Pattern		desc_link_pattern;
+		private final String		link_type;
+		private final boolean		ignore_dates;
+		private final boolean		publish_unread;
+		private final int			min_seeds;
+		private final int			min_leechers;
+		private final int			type;
+		private final String		nick;
+		private final String		network;
+		private final String		key;
+		
+		private final List<Subscription>	item_associations;
+		
+		private final String		presentation;
+		private final String		website_name;
+		private final int			retain_sites;
+		private final int			retain_items;
+		
+		private final String		source_host;
+		
+		private final long			refresh_min;
+		private final long			refresh_max;
+		private final long			refresh_jitter;
+		private final int			refresh_seed;
+		private final int			history_store;
+		private final int			history_max_entries;
+		private final int			history_max_age;
+		
+		private final int			post_rate;
+		private final int			post_burst;
+		
+		private final MagnetBuilder.TrackerSelector	tracker_selector;
+		private final int			flags;
+		
+		private volatile long	refresh_period;
+		private double			new_item_average	= -1;
+		
+		private long			next_due;		// guarded by the scheduler
+		private boolean			force_update;
+		
+		private ChatInstance	chat;
+		private boolean			updating;
+		private boolean			retry_outstanding;
+		
+		private History			history;		// only accessed by the thread holding the update reservation
+		private ChatPoster		poster;
+		
+		private boolean	destroyed;
+		
+		private
+		Mapping(
+			String				_source,
+			boolean				_is_rss,
+			Pattern				_desc_link_pattern,
+			String				_link_type,
+			boolean				_ignore_dates,
+			boolean				_publish_unread,
+			int					_min_seeds,
+			int					_min_leechers,
+			String				_network,
+			String				_key,
+			int					_type,
+			String				_nick,
+			String				_presentation,
+			String				_website_name,
+			int					_retain_sites,
+			int					_retain_items,
+			List<Subscription>	_item_associations,
+			long				_refresh_period,
+			long				_refresh_min,
+			long				_refresh_max,
+			long				_refresh_jitter,
+			int					_history_store,
+			int					_history_max_entries,
+			int					_history_max_age,
+			int					_post_rate,
+			int					_post_burst,
+			int					_flags )
+		{
+			source				= _source;
 			is_rss				= _is_rss;
 			desc_link_pattern	= _desc_link_pattern;
 			link_type			= _link_type;
@@ -2679,328 +4091,1119 @@ RSSToChat
 			retain_items		= _retain_items;
 			item_associations	= _item_associations;
 			
-			refresh				= _refresh;
+			refresh_min			= _refresh_min;
+			refresh_max			= _refresh_max;
+			refresh_jitter		= _refresh_jitter;
+			history_store		= _history_store;
+			history_max_entries	= _history_max_entries;
+			history_max_age		= _history_max_age;
+			post_rate			= _post_rate;
+			post_burst			= _post_burst;
 			flags				= _flags;
 			
+			tracker_selector	= new MagnetBuilder.TrackerSelector( network == AENetworkClassifier.AT_PUBLIC );
+			
+			if ( isAdaptive()){
+				
+				refresh_period = Math.min( Math.max( _refresh_period, refresh_min ), refresh_max );
+				
+			}else{
+				
+				refresh_period = _refresh_period;
+			}
+			
+				// spread mappings with the same refresh period across the period rather than having them
+				// all fire together - derived from the source alone so it is stable across reloads and
+				// mappings of one source to several chats stay in step and share the fetch (see FeedCache)
+			
+			refresh_seed = getSourceName().hashCode() & 0x7fffffff;
+			
+			String	host = null;
+			
+			if ( is_rss ){
+				
+				try{
+					host = new URL( source ).getHost().toLowerCase( Locale.US );
+					
+				}catch( Throwable e ){
+				}
+			}
+			
+				// a source without a usable host is tracked on its own rather than with every other such source
+			
+			source_host = host==null||host.length()==0?source:host;
+			
 			retry_outstanding = true;		// initial load regardless
 		}
 		
-		private void
-		update(
-			BuddyPluginBeta		bp,
-			int					minute_count,
-			boolean				force )
+		private boolean
+		reserveUpdate()
 		{
 			synchronized( this ){
 				
-				if ( updating ){
+				if ( updating || destroyed ){
 					
-					return;
+					return( false );
 				}
 				
 				updating = true;
+				
+				return( true );
+			}
+		}
+		
+			// returns false if the update is still in progress at the deadline
+		
+		private boolean
+		waitForUpdate(
+			long		deadline )
+		{
+			synchronized( this ){
+				
+				while( updating ){
+					
+					long	rem = deadline - SystemTime.getMonotonousTime();
+					
+					if ( rem <= 0 ){
+						
+						return( false );
+					}
+					
+					try{
+						wait( rem );
+						
+					}catch( InterruptedException e ){
+						
+						return( false );
+					}
+				}
+				
+				return( true );
+			}
+		}
+		
+		private void
+		setForceUpdate()
+		{
+			synchronized( this ){
+				
+				force_update = true;
+			}
+		}
+		
+		private long
+		getNextDue(
+			long		now )
+		{
+			long	period 	= refresh_period;
+			long	phase	= refresh_seed % period;
+			
+			long	next = now + period - Math.floorMod( now - phase, period );
+			
+			if ( refresh_jitter > 0 ){
+				
+				next += RandomUtils.nextInt((int)Math.min( refresh_jitter, Integer.MAX_VALUE ));
+			}
+			
+			boolean	force;
+			
+			synchronized( this ){
+				
+				force = force_update;
+			}
+			
+				// nothing is attempted against a backing off host before it is due to be probed, a
+				// mapping with a failure outstanding is the probe
+			
+			long	probe_at = is_rss?source_health.getRetryTime( source_host ):0;
+			
+			if ( force ){
+				
+				next = now;
+				
+			}else if ( probe_at > 0 ){
+				
+				next = retry_outstanding?probe_at:Math.max( next, probe_at );
+				
+			}else if ( retry_outstanding ){
+				
+				next = Math.min( next, now + RETRY_PERIOD );
+			}
+			
+			return( next );
+		}
+		
+		private boolean
+		isAdaptive()
+		{
+			return( refresh_max > 0 );
+		}
+		
+			// called after a successful refresh with the number of items published (or extracted) and
+			// whether more were left pending
+		
+		private void
+		recordRefresh(
+			int			new_items,
+			boolean		more_pending )
+		{
+			if ( !isAdaptive()){
+				
+				return;
+			}
+			
+			if ( new_item_average < 0 ){
+				
+				new_item_average = new_items;
+				
+			}else{
+				
+				new_item_average = ADAPTIVE_ALPHA * new_items + ( 1 - ADAPTIVE_ALPHA ) * new_item_average;
+			}
+			
+			double	factor;
+			
+			if ( more_pending ){
+				
+				factor = ADAPTIVE_MIN_FACTOR;
+				
+			}else if ( new_item_average <= 0 ){
+				
+				factor = ADAPTIVE_MAX_FACTOR;
+				
+			}else{
+				
+				factor = Math.min( Math.max( ADAPTIVE_TARGET_ITEMS / new_item_average, ADAPTIVE_MIN_FACTOR ), ADAPTIVE_MAX_FACTOR );
 			}
 			
+			long	old_period = refresh_period;
+			
+			long	new_period = (long)( old_period * factor );
+			
+			new_period = ( new_period / 1000 ) * 1000;
+			
+			new_period = Math.min( Math.max( new_period, refresh_min ), refresh_max );
+			
+			if ( new_period != old_period ){
+				
+				refresh_period = new_period;
+				
+				log( "    Refresh period adjusted from " + formatPeriod( old_period ) + " to " + formatPeriod( new_period ) + " (average new items=" + String.format( Locale.US, "%.2f", new_item_average ) + ")" );
+			}
+		}
+		
+			// caller must have successfully called reserveUpdate - the reservation is released on exit
+		
+		private void
+		update(
+			BuddyPluginBeta		bp )
+		{
 			try{
-				if ( 	force ||
-						retry_outstanding || 
-						minute_count % refresh == 0 ){
-									
-					retry_outstanding = false;
+				boolean	force;
+				
+				synchronized( this ){
+					
+						// don't (re)open a history for a mapping discarded while this was queued
+					
+					if ( destroyed ){
+						
+						return;
+					}
 					
-					History history = new History( this );
+					force = force_update;
+					
+					force_update = false;
+				}
+				
+				retry_outstanding = false;
+				
+				History history = getHistory();
 
-					log( "Refreshing " + getSourceName() + " (" + history.getHistoryKey() + ")");
+				log( "Refreshing " + getSourceName() + " (" + history.getHistoryKey() + ")");
+				
+				ChatInstance chat_instance;
+									
+				synchronized( this ){
 					
-					ChatInstance chat_instance;
-										
-					synchronized( this ){
+					if ( destroyed ){
 						
-						if ( destroyed ){
-							
-							log( "Mapping destroyed" );
-							
-							return;
-						}
+						log( "Mapping destroyed" );
 						
-						if ( chat == null || chat.isDestroyed()){
-							
-							chat = null;
-							
-							try{
-								if ( type != TYPE_NORMAL ){
-									
-									List<ChatInstance> chats = bp.getChats();
+						return;
+					}
+					
+					if ( chat == null || chat.isDestroyed()){
+						
+						chat = null;
+						
+						try{
+							if ( type != TYPE_NORMAL ){
+								
+								List<ChatInstance> chats = bp.getChats();
 
-									for ( ChatInstance inst: chats ){
-										
-										if ( !inst.isAvailable()){
-											
-											// can't determine until bound
-										
-											log( "Waiting for bind to occur on " + inst.getNetAndKey() + " before resolving " + network + "/" + key );
-										
-											retry_outstanding = true;
-										
-											return;
-										}
+								for ( ChatInstance inst: chats ){
+									
+									if ( !inst.isAvailable()){
 										
-										if ( type == TYPE_ADMIN ){
-											
-											if ( inst.isManagedFor( network, key )){
-											
-												chat = inst;
-												
-												break;
-											}
-										}else if ( type == TYPE_READ_ONLY ){
-											
-											if ( inst.isReadOnlyFor( network, key )){
-											
-												chat = inst;
-												
-												break;
-											}
-										}
-									}
-								}
-								
-								if ( chat == null ){
+										// can't determine until bound
 									
-									chat = bp.getChat( network, key );
+										log( "Waiting for bind to occur on " + inst.getNetAndKey() + " before resolving " + network + "/" + key );
 									
-									if ( chat == null ){
-										
 										retry_outstanding = true;
-										
+									
 										return;
 									}
 									
 									if ( type == TYPE_ADMIN ){
 										
-										ChatInstance man_inst = chat.getManagedChannel();
+										if ( inst.isManagedFor( network, key )){
 										
-										chat.destroy();
-										
-										chat	= man_inst;
-										
-									}else  if ( type == TYPE_READ_ONLY ){
-										
-										ChatInstance ro_inst = chat.getReadOnlyChannel();
+											chat = inst;
+											
+											break;
+										}
+									}else if ( type == TYPE_READ_ONLY ){
 										
-										chat.destroy();
+										if ( inst.isReadOnlyFor( network, key )){
 										
-										chat	= ro_inst;
+											chat = inst;
+											
+											break;
+										}
 									}
 								}
+							}
+							
+							if ( chat == null ){
 								
-								chat.setFavourite( true );
+								chat = bp.getChat( network, key );
 								
-								chat.setSaveMessages( true );
-									
-								if ( nick != null ){
+								if ( chat == null ){
 									
-									chat.setSharedNickname( false );
+									retry_outstanding = true;
 									
-									chat.setInstanceNickname( nick );
+									return;
 								}
 								
-								log( "Chat initialised for '" + getChatName() + "': URL=" + chat.getURL() + ", history=" + history.getFileName());
-
-							}catch( Throwable e ){
+								if ( type == TYPE_ADMIN ){
+									
+									ChatInstance man_inst = chat.getManagedChannel();
+									
+									chat.destroy();
+									
+									chat	= man_inst;
+									
+								}else  if ( type == TYPE_READ_ONLY ){
+									
+									ChatInstance ro_inst = chat.getReadOnlyChannel();
+									
+									chat.destroy();
+									
+									chat	= ro_inst;
+								}
+							}
+							
+							chat.setFavourite( true );
+							
+							chat.setSaveMessages( true );
 								
-								Debug.out( e );
+							if ( nick != null ){
 								
-								log( "Failed to create chat '" + getChatName() + "': " + Debug.getNestedExceptionMessage( e ));
+								chat.setSharedNickname( false );
 								
-								return;
+								chat.setInstanceNickname( nick );
 							}
+							
+							log( "Chat initialised for '" + getChatName() + "': URL=" + chat.getURL() + ", history=" + history.getFileName());
+
+						}catch( Throwable e ){
+							
+							Debug.out( e );
+							
+							log( "Failed to create chat '" + getChatName() + "': " + Debug.getNestedExceptionMessage( e ));
+							
+							return;
 						}
+					}
+					
+					chat_instance = chat;						
+				}
+				
+					// anything left queued from an earlier chat instance can go now
+				
+				getPoster().setChat( chat_instance );
+				
+
+				if ( is_rss ){
+					
+					retry_outstanding = updateRSS( this, source, chat_instance, history, force );
+					
+				}else{
+					
+					retry_outstanding = updateSubscription( this, source, chat_instance, history, force );
+				}
+			}finally{
+				
+				synchronized( this ){
+					
+					updating = false;
+					
+					notifyAll();
+				}
+			}
+		}
+		
+		private void
+		destroy()
+		{
+			synchronized( this ){
+
+				destroyed = true;
+				
+				if ( chat != null ){
+				
+					chat.destroy();
+				
+					chat = null;
+				}
+			}	
+		}
+		
+		private boolean
+		isDestroyed()
+		{
+			synchronized( this ){
+				
+				return( destroyed );
+			}
+		}
+		
+			// obtained on first refresh and then kept, each refresh saves it if changed so nothing
+			// is lost when the mapping is discarded
+		
+		private History
+		getHistory()
+		{
+			if ( history == null ){
+				
+				history = RSSToChat.this.getHistory( this );
+			}
+			
+			return( history );
+		}
+		
+		private String
+		getHistoryKey()
+		{
+			return( Base32.encode( getKey( getSourceName() + "/" + getChatName())));
+		}
+		
+		private int
+		getHistoryStore()
+		{
+			return( history_store );
+		}
+		
+		private int
+		getHistoryMaxEntries()
+		{
+			return( history_max_entries );
+		}
+		
+			// minutes, 0 if entries are only evicted by count
+		
+		private int
+		getHistoryMaxAge()
+		{
+			return( history_max_age );
+		}
+		
+		private String
+		getPosterKey()
+		{
+			return( getChatName() + "/" + type );
+		}
+		
+		private int
+		getPostRate()
+		{
+			return( post_rate );
+		}
+		
+		private int
+		getPostBurst()
+		{
+			return( post_burst );
+		}
+		
+		private synchronized ChatPoster
+		getPoster()
+		{
+			if ( poster == null ){
+				
+				poster = RSSToChat.this.getPoster( this );
+			}
+			
+			return( poster );
+		}
+		
+		private MagnetBuilder.TrackerSelector
+		getTrackerSelector()
+		{
+			return( tracker_selector );
+		}
+		
+		private String
+		getOverallName()
+		{
+			String type_str;
+			
+			if ( type == TYPE_NORMAL ){
+				type_str = "normal";
+			}else if ( type == TYPE_READ_ONLY ){
+				type_str = "readonly";
+			}else{
+				type_str = "admin";
+			}
+			
+			return( getSourceName() + ", " + getChatName() + ", type=" + type_str + ", refresh=" + formatPeriod( refresh_period ) + (isAdaptive()?(" (adaptive " + formatPeriod( refresh_min ) + "-" + formatPeriod( refresh_max ) + ")"):"") + (refresh_jitter>0?(" (+" + formatPeriod( refresh_jitter ) + " jitter)"):"" ) +
+					", history=" + (history_store==HISTORY_STORE_MAPPED?"mapped":"journal") + "/" + history_max_entries + (history_max_age>0?(" (max age " + formatPeriod( history_max_age*60*1000L ) + ")"):"") +
+					", posting=" + post_rate + "/min (burst " + post_burst + ")" );
+		}
+		
+		private String
+		getPresentation()
+		{
+			return( presentation );
+		}
+		
+		public String
+		getSiteName()
+		{
+			return( website_name );
+		}
+		
+		private int
+		getSitesToRetain()
+		{
+			return( retain_sites );
+		}
+		
+		private int
+		getItemsToRetain()
+		{
+			return( retain_items );
+		}
+		
+		private boolean
+		getIgnoreDates()
+		{
+			return( ignore_dates );
+		}
+		
+		private boolean
+		getPublishUnread()
+		{
+			return( publish_unread );
+		}
+		
+		private int
+		getMinSeeds()
+		{
+			return( min_seeds );
+		}
+		
+		private int
+		getMinLeechers()
+		{
+			return( min_leechers );
+		}
+		
+		private String
+		getNetwork()
+		{
+			return( network );
+		}
+		
+		private String
+		getSourceHost()
+		{
+			return( source_host );
+		}
+		
+		private String
+		getSourceName()
+		{
+			return( ( is_rss?"RSS":"Subscription") + ": " + source );
+		}
+		
+		private String
+		getChatName()
+		{
+			return((network==AENetworkClassifier.AT_PUBLIC?"Public":"Anonymous") + ": " + key );
+		}
+		
+		private List<Subscription>
+		getItemAssociations()
+		{
+			return( item_associations );
+		}
+		
+		private int
+		getFlags()
+		{
+			return( flags );
+		}
+		
+		private boolean
+		hasFlag(
+			int		flag )
+		{
+			return( (flags & flag ) != 0 );
+		}
+	}
+	
+	private class
+	History
+	{
+		private String	history_key;
+		
+		private File	dir;
+		private File 	file;
+		private File	fetch_state_file;
+		
+		private boolean	fetch_state_loaded;
+		private boolean	fetch_state_dirty;
+		private String	etag;
+		private String	last_modified;
+		private byte[]	digest;
+		
+			// while entries written with legacy keys remain ids are also looked up by their legacy key.
+			// The store is FIFO so they have all gone once the newest of them, 'legacy_mark', has
+		
+		private int		key_version;
+		private long	legacy_mark;
+		
+		private final int			store_type;
+		private final int			max_entries;
+		private final int			max_age;
+		private final HistoryStore	store;
+		private final String		store_name;
+		
+		private boolean	closed;
+		
+		private int		publish_count;
+		
+		private
+		History(
+			Mapping		mapping )
+		{
+			history_key = mapping.getHistoryKey();
+			
+			store_type	= mapping.getHistoryStore();
+			max_entries	= mapping.getHistoryMaxEntries();
+			max_age		= mapping.getHistoryMaxAge();
+			
+			dir 				= new File( history_dir, history_key );
+			file 				= new File( history_dir, history_key  + ".dat" );
+			fetch_state_file	= new File( history_dir, history_key  + ".val" );
+			
+			File journal_file	= new File( history_dir, history_key  + ".jnl" );
+			File mapped_file	= new File( history_dir, history_key  + ".map" );
+			
+			HistoryStore	mapped_store = null;
+			
+			if ( store_type == Mapping.HISTORY_STORE_MAPPED ){
+				
+				try{
+					mapped_store = new MappedHistoryStore( mapped_file, max_entries );
+					
+					if ( file.exists() || journal_file.exists()){
+						
+							// carry over what the journal store has. Its files are removed once the import
+							// is on disk so that they can't reappear if the journal store is selected again.
+							// An interrupted import is repeated, ids already present are skipped
+						
+						JournalHistoryStore old = new JournalHistoryStore( history_key, file, journal_file, max_entries );
 						
-						chat_instance = chat;						
-					}
-								
-					try{
-						if ( is_rss ){
+						long[] 	ids 	= old.getIds();
+						int[]	added	= old.getAddedTimes();
+						
+						for ( int i=0;i<ids.length;i++ ){
 							
-							retry_outstanding = updateRSS( this, source, chat_instance, history, force );
+							mapped_store.add( ids[i], 0, added[i] );
+						}
+						
+						if ( ids.length > 0 ){
 							
-						}else{
+							mapped_store.add( ids[ids.length-1], old.getLatestPublish(), 0 );
+						}
+						
+							// closing forces the mapping out to the file
+						
+						mapped_store.close();
+						
+						mapped_store = new MappedHistoryStore( mapped_file, max_entries );
+						
+						journal_file.delete();
+						
+						file.delete();
+						
+						if ( journal_file.exists() || file.exists()){
 							
-							retry_outstanding = updateSubscription( this, source, chat_instance, history, force );
+							log( "Failed to remove imported history files for " + history_key );
 						}
-					}finally{
 						
-						history.save();
+						log( "Imported " + ids.length + " history entries into " + mapped_file );
+					}
+				}catch( Throwable e ){
+					
+					log( "Failed to open mapped history " + mapped_file + ", using journal", e );
+					
+					if ( mapped_store != null ){
+						
+						mapped_store.close();
+						
+						mapped_store = null;
 					}
 				}
-			}finally{
+			}
+			
+			if ( mapped_store != null ){
 				
-				synchronized( this ){
+				store		= mapped_store;
+				store_name	= mapped_file.getName();
+				
+			}else{
+				
+				store		= new JournalHistoryStore( history_key, file, journal_file, max_entries );
+				store_name	= file.getName();
+			}
+			
+			expire();
+			
+			loadFetchState();
+			
+			if ( key_version < HISTORY_KEY_VERSION ){
+				
+				if ( store.size() == 0 ){
 					
-					updating = false;
+					key_version = HISTORY_KEY_VERSION;
+					
+					setFetchStateDirty();
+					
+				}else if ( key_version == 0 ){
+					
+						// first open since the key change, entries are all legacy
+					
+					key_version	= 1;
+					legacy_mark	= store.getNewestId();
+					
+					setFetchStateDirty();
+					
+					log( "History " + store_name + " has " + store.size() + " entries with legacy keys, migrating as they age out" );
 				}
 			}
 		}
 		
-		private void
-		destroy()
+		private boolean
+		isCompatible(
+			Mapping		mapping )
 		{
-			synchronized( this ){
+			return( mapping.getHistoryStore() == store_type && mapping.getHistoryMaxEntries() == max_entries && mapping.getHistoryMaxAge() == max_age );
+		}
+		
+		private String
+		getHistoryKey()
+		{
+			return( history_key );
+		}
+		
+		private File
+		getItemsFolder()
+		{			
+			File result = new File( dir, "items" );
+						
+			if ( !result.exists()){
+				
+				result.mkdirs();
+			}
 
-				destroyed = true;
+			return( result );
+		}
+		
+		private File
+		getItemFolder(
+			String		id,
+			long		time )
+		{			
+			File result = new File( dir, "items" );
+			
+			final String prefix = new SimpleDateFormat( "yyyyMMdd").format( new Date( time )) + "_" + Base32.encode( getKey( id )) + "_";
+			
+			if ( time == 0 ){
+			
+				File[] match = 
+					result.listFiles(
+						new FilenameFilter() {
+							
+							@Override
+							public boolean
+							accept(
+								File dir, 
+								String filename) 
+							{
+								return( filename.startsWith( prefix ));
+							}
+						});
 				
-				if ( chat != null ){
+				if ( match != null && match.length == 1 ){
+					
+					return( match[0] );
+				}
 				
-					chat.destroy();
+				time = SystemTime.getCurrentTime();
+			}
+			
+			result = new File( result, prefix + time );
+			
+			if ( !result.exists()){
 				
-					chat = null;
-				}
-			}	
+				result.mkdirs();
+			}
+
+			return( result );
+		}
+		
+		private File
+		getSitesFolder()
+		{			
+			File result = new File( dir, "sites" );
+						
+			if ( !result.exists()){
+				
+				result.mkdirs();
+			}
+
+			return( result );
+		}
+		
+		private File
+		getSiteFolder(
+			long		time )
+		{			
+			File result = new File( dir, "sites" );
+				
+			result = new File( result, new SimpleDateFormat( "yyyyMMdd").format( new Date( time )) + "_" + history_key + "_" + time );
+
+			if ( !result.exists()){
+				
+				result.mkdirs();
+			}
+
+			return( result );
 		}
 		
 		private String
-		getOverallName()
+		getFileName()
 		{
-			String type_str;
+			return( store_name );
+		}
+		
+		private synchronized long
+		getLatestPublish()
+		{
+			return( closed?0:store.getLatestPublish());
+		}
+		
+			// once closed (config change or unload while a refresh is in progress) everything is
+			// treated as published so that nothing can be posted twice
+		
+			// whether entries may remain that were recorded with keys from before the current scheme
+		
+		private synchronized boolean
+		hasLegacyKeys()
+		{
+			return( !closed && key_version < HISTORY_KEY_VERSION );
+		}
+		
+		private synchronized boolean
+		hasPublished(
+			String		id )
+		{
+			long	key = getLongKey( id );
 			
-			if ( type == TYPE_NORMAL ){
-				type_str = "normal";
-			}else if ( type == TYPE_READ_ONLY ){
-				type_str = "readonly";
-			}else{
-				type_str = "admin";
+			if ( hasPublished( key )){
+				
+				return( true );
+			}
+			
+			if ( key_version < HISTORY_KEY_VERSION && store.contains( getLegacyLongKey( id ))){
+				
+				addKey( key );
+				
+				return( true );
 			}
 			
-			return( getSourceName() + ", " + getChatName() + ", type=" + type_str + ", refresh=" + refresh + " min" );
+			return( false );
 		}
 		
-		private String
-		getPresentation()
+		private synchronized boolean
+		hasPublished(
+			long		key )
 		{
-			return( presentation );
+			return( closed || store.contains( key ));
+		}
+
+		private void
+		setPublished(
+			String		id,
+			long		item_time )
+		{
+			setPublished( getLongKey( id ), item_time );
 		}
 		
-		public String
-		getSiteName()
+		private synchronized void
+		setPublished(
+			long		key,
+			long		item_time )
 		{
-			return( website_name );
+			if ( closed ){
+				
+				return;
+			}
+			
+			store.add( key, item_time, getCurrentMins());
+			
+			publish_count++;
+			
+			setHistoryDirty( this );
 		}
 		
-		private int
-		getSitesToRetain()
+			// records a further key for something already published
+		
+		private synchronized void
+		addKey(
+			long		key )
 		{
-			return( retain_sites );
+			if ( closed ){
+				
+				return;
+			}
+			
+			store.add( key, 0, getCurrentMins());
+			
+			setHistoryDirty( this );
 		}
 		
 		private int
-		getItemsToRetain()
+		getPublishCount()
 		{
-			return( retain_items );
+			return( publish_count );
 		}
 		
-		private boolean
-		getIgnoreDates()
+			// HTTP validators and content digest from the last fully processed fetch of the source
+		
+			// ... and the history's key version, kept here as it applies to whichever store is in use
+		
+		private void
+		loadFetchState()
 		{
-			return( ignore_dates );
+			if ( !fetch_state_loaded ){
+				
+				fetch_state_loaded = true;
+				
+				if ( fetch_state_file.exists()){
+					
+					Map map = FileUtil.readResilientFile( fetch_state_file );
+					
+					etag			= MapUtils.getMapString( map, "etag", null );
+					last_modified	= MapUtils.getMapString( map, "last_modified", null );
+					digest			= (byte[])map.get( "digest" );
+					
+					key_version		= MapUtils.getMapInt( map, "key_version", 0 );
+					legacy_mark		= MapUtils.getMapLong( map, "legacy_mark", 0 );
+				}
+			}
 		}
 		
-		private boolean
-		getPublishUnread()
+		private String
+		getETag()
 		{
-			return( publish_unread );
+			loadFetchState();
+			
+			return( etag );
 		}
 		
-		private int
-		getMinSeeds()
+		private String
+		getLastModified()
 		{
-			return( min_seeds );
+			loadFetchState();
+			
+			return( last_modified );
 		}
 		
-		private int
-		getMinLeechers()
+		private byte[]
+		getDigest()
 		{
-			return( min_leechers );
+			loadFetchState();
+			
+			return( digest );
 		}
 		
-		private String
-		getNetwork()
+		private synchronized void
+		setFetchState(
+			String		_etag,
+			String		_last_modified,
+			byte[]		_digest )
 		{
-			return( network );
+			loadFetchState();
+			
+			if ( 	Objects.equals( etag, _etag ) &&
+					Objects.equals( last_modified, _last_modified ) &&
+					Arrays.equals( digest, _digest )){
+				
+				return;
+			}
+			
+			etag			= _etag;
+			last_modified	= _last_modified;
+			digest			= _digest;
+			
+			setFetchStateDirty();
 		}
 		
-		private String
-		getSourceName()
+			// written behind, along with the history
+		
+		private synchronized void
+		setFetchStateDirty()
 		{
-			return( ( is_rss?"RSS":"Subscription") + ": " + source );
+			fetch_state_dirty = true;
+			
+			setHistoryDirty( this );
 		}
 		
-		private String
-		getChatName()
+		private synchronized void
+		writeFetchState()
 		{
-			return((network==AENetworkClassifier.AT_PUBLIC?"Public":"Anonymous") + ": " + key );
+			fetch_state_dirty = false;
+			
+			Map map = new HashMap();
+			
+			if ( etag != null ){
+				
+				map.put( "etag", etag );
+			}
+			
+			if ( last_modified != null ){
+				
+				map.put( "last_modified", last_modified );
+			}
+			
+			if ( digest != null ){
+				
+				map.put( "digest", digest );
+			}
+			
+			map.put( "key_version", key_version );
+			
+			if ( key_version < HISTORY_KEY_VERSION ){
+				
+				map.put( "legacy_mark", legacy_mark );
+			}
+			
+			FileUtil.writeResilientFile( fetch_state_file, map );
 		}
 		
-		private List<Subscription>
-		getItemAssociations()
+		private synchronized void
+		save()
 		{
-			return( item_associations );
+			if ( !closed ){
+			
+				expire();
+				
+				store.save();
+				
+				if ( key_version < HISTORY_KEY_VERSION && !store.contains( legacy_mark )){
+					
+					key_version = HISTORY_KEY_VERSION;
+					
+					fetch_state_dirty = true;
+					
+					log( "History " + store_name + " no longer has legacy keys" );
+				}
+				
+				if ( fetch_state_dirty ){
+					
+					writeFetchState();
+				}
+			}
 		}
 		
-		private int
-		getFlags()
+		private void
+		expire()
 		{
-			return( flags );
+			if ( max_age > 0 ){
+				
+				store.expire( getCurrentMins() - max_age );
+			}
 		}
 		
-		private boolean
-		hasFlag(
-			int		flag )
+		private synchronized void
+		close()
 		{
-			return( (flags & flag ) != 0 );
+			if ( !closed ){
+				
+				closed = true;
+				
+				store.save();
+				
+				store.close();
+				
+				if ( fetch_state_dirty ){
+					
+					writeFetchState();
+				}
+			}
 		}
 	}
 	
+		// the default history store: a bencoded snapshot of the ids plus a journal of additions made
+		// since it was written. Additions are appended to the journal on save, the snapshot is only
+		// rewritten (in the background) once the journal has grown enough to make replaying it worthwhile
+	
 	private class
-	History
+	JournalHistoryStore
+		implements HistoryStore
 	{
-		private String	history_key;
+		private final String			name;
+		private final File				file;
+		private final HistoryJournal	journal;
 		
-		private File	dir;
-		private File 	file;
+		private final LongHistorySet	history;
 		
-		private long 	latest_publish;
+		private long	latest_publish;
 		
-		private Map<HashWrapper,String>	history =
-				new LinkedHashMap<HashWrapper,String>(MAX_HISTORY_ENTRIES,0.75f,false)
-				{
-					@Override
-					protected boolean
-					removeEldestEntry(
-				   		Map.Entry<HashWrapper,String> eldest) 
-					{
-						return size() > MAX_HISTORY_ENTRIES;
-					}
-				};
+		private long[]	pending			= new long[16*HistoryJournal.FIELDS];	// records not yet in the journal
+		private int		pending_count;
 		
-		private boolean dirty;
+		private int		journal_records;				// guarded by 'this' as compaction updates it
+		private boolean	compacting;						// queued or running
+		private boolean	compaction_running;
+		private boolean	closed;
 		
 		private
-		History(
-			Mapping		mapping )
+		JournalHistoryStore(
+			String		_name,
+			File		_file,
+			File		_journal_file,
+			int			max_entries )
 		{
-			String	key = mapping.getSourceName() + "/" + mapping.getChatName();
+			name	= _name;
+			file	= _file;
+			journal	= new HistoryJournal( _journal_file );
 			
-			history_key = Base32.encode( getKey( key ));
-			
-			try{				
-				dir 	= new File( history_dir, history_key );
-				file 	= new File( history_dir, history_key  + ".dat" );
-				
-			}catch( Throwable e ){
-				
-				Debug.out( e );
-			}
+			history = new LongHistorySet( max_entries );
 			
 			if ( file.exists()){
 				
@@ -3015,158 +5218,303 @@ RSSToChat
 				
 				List<byte[]> l = (List<byte[]>)map.get( "ids" );
 				
-				for ( byte[] id: l ){
+					// 4 bytes per id, missing from snapshots written before entries could expire
+				
+				byte[]	added = (byte[])map.get( "added" );
+				
+				if ( l != null ){
+					
+					if ( added != null && added.length != l.size()*4 ){
+						
+						added = null;
+					}
+					
+					int	default_added = (int)( file.lastModified()/(60*1000));
+					
+					for ( int i=0;i<l.size();i++ ){
+						
+						int	a = added==null?default_added:(((added[i*4]&0xff)<<24)|((added[i*4+1]&0xff)<<16)|((added[i*4+2]&0xff)<<8)|(added[i*4+3]&0xff));
+						
+						history.add( LongHistorySet.toLong( l.get(i)), a );
+					}
+				}
+			}
+			
+				// additions since the snapshot was last written
+			
+			try{
+				long[] records = journal.read();
+				
+				for ( int i=0;i<records.length;i+=HistoryJournal.FIELDS ){
 					
-					history.put( new HashWrapper( id ), "" );
+					history.add( records[i], (int)records[i+2] );
+					
+					if ( records[i+1] > latest_publish ){
+						
+						latest_publish = records[i+1];
+					}
 				}
+				
+				journal_records = records.length/HistoryJournal.FIELDS;
+				
+			}catch( Throwable e ){
+				
+				log( "Failed to read history journal for " + name + ", discarding it", e );
+				
+				journal.delete();
 			}
 		}
 		
-		private String
-		getHistoryKey()
+		@Override
+		public boolean
+		contains(
+			long		id )
 		{
-			return( history_key );
+			return( history.contains( id ));
 		}
 		
-		private File
-		getItemsFolder()
-		{			
-			File result = new File( dir, "items" );
-						
-			if ( !result.exists()){
+		@Override
+		public void
+		add(
+			long		id,
+			long		item_time,
+			int			added_mins )
+		{
+			boolean	added = history.add( id, added_mins );
+			
+			if ( item_time > latest_publish ){
 				
-				result.mkdirs();
+				latest_publish = item_time;
 			}
-
-			return( result );
-		}
-		
-		private File
-		getItemFolder(
-			String		id,
-			long		time )
-		{			
-			File result = new File( dir, "items" );
-			
-			final String prefix = new SimpleDateFormat( "yyyyMMdd").format( new Date( time )) + "_" + Base32.encode( getKey( id )) + "_";
 			
-			if ( time == 0 ){
-			
-				File[] match = 
-					result.listFiles(
-						new FilenameFilter() {
-							
-							@Override
-							public boolean
-							accept(
-								File dir, 
-								String filename) 
-							{
-								return( filename.startsWith( prefix ));
-							}
-						});
+			if ( !added ){
 				
-				if ( match != null && match.length == 1 ){
-					
-					return( match[0] );
-				}
+					// already recorded, nothing for the journal
 				
-				time = SystemTime.getCurrentTime();
+				return;
 			}
 			
-			result = new File( result, prefix + time );
+			int	pos = pending_count*HistoryJournal.FIELDS;
 			
-			if ( !result.exists()){
+			if ( pos == pending.length ){
 				
-				result.mkdirs();
+				pending = Arrays.copyOf( pending, pending.length*2 );
 			}
-
-			return( result );
+			
+			pending[pos]	= id;
+			pending[pos+1]	= item_time;
+			pending[pos+2]	= added_mins;
+			
+			pending_count++;
 		}
 		
-		private File
-		getSitesFolder()
-		{			
-			File result = new File( dir, "sites" );
-						
-			if ( !result.exists()){
-				
-				result.mkdirs();
-			}
-
-			return( result );
+			// expired entries may still be in the journal, they are dropped again by the expiry
+			// that follows loading
+		
+		@Override
+		public int
+		expire(
+			int		min_added_mins )
+		{
+			return( history.expire( min_added_mins ));
 		}
 		
-		private File
-		getSiteFolder(
-			long		time )
-		{			
-			File result = new File( dir, "sites" );
-				
-			result = new File( result, new SimpleDateFormat( "yyyyMMdd").format( new Date( time )) + "_" + history_key + "_" + time );
-
-			if ( !result.exists()){
-				
-				result.mkdirs();
-			}
-
-			return( result );
+		@Override
+		public long
+		getLatestPublish()
+		{
+			return( latest_publish );
 		}
 		
-		private String
-		getFileName()
+		@Override
+		public int
+		size()
 		{
-			return( file.getName());
+			return( history.size());
 		}
 		
-		private long
-		getLatestPublish()
+		@Override
+		public long[]
+		getIds()
 		{
-			return( latest_publish );
+			return( history.toArray());
 		}
 		
-		private boolean
-		hasPublished(
-			String		id )
+		@Override
+		public long
+		getNewestId()
 		{
-			return( history.containsKey( new HashWrapper( getKey( id ))));
+			return( history.getNewest());
 		}
-
-		private void
-		setPublished(
-			String		id,
-			long		item_time )
+		
+		private int[]
+		getAddedTimes()
+		{
+			return( history.getAddedTimes());
+		}
+		
+		@Override
+		public void
+		save()
 		{
-			history.put( new HashWrapper( getKey( id )), "" );
+			if ( pending_count == 0 ){
+				
+				return;
+			}
 			
-			if ( item_time > latest_publish ){
+			try{
+				journal.append( pending, pending_count );
 				
-				latest_publish = item_time;
+			}catch( Throwable e ){
+				
+					// leave the additions pending, next save will try again
+				
+				log( "Failed to append to history journal for " + name, e );
+				
+				return;
+			}
+			
+			final long[]	snapshot_ids;
+			final int[]		snapshot_added;
+			final long		snapshot_latest;
+			final int		snapshot_records;
+			
+			synchronized( this ){
+				
+				journal_records += pending_count;
+				
+				pending_count = 0;
+				
+				if ( compacting || journal_records < HISTORY_COMPACT_RECORDS ){
+					
+					return;
+				}
+				
+				compacting = true;
+				
+				snapshot_ids		= history.toArray();
+				snapshot_added		= history.getAddedTimes();
+				snapshot_latest		= latest_publish;
+				snapshot_records	= journal_records;
 			}
 			
-			dirty = true;
+			history_dispatcher.dispatch(
+				new AERunnable()
+				{
+					@Override
+					public void
+					runSupport()
+					{
+						synchronized( JournalHistoryStore.this ){
+							
+								// the journal still holds everything, the next open can compact it
+							
+							if ( closed ){
+								
+								compacting = false;
+								
+								return;
+							}
+							
+							compaction_running = true;
+						}
+						
+						try{
+							writeSnapshot( snapshot_ids, snapshot_added, snapshot_latest );
+							
+								// anything appended since the snapshot was taken is retained
+							
+							journal.removeLeading( snapshot_records );
+							
+							synchronized( JournalHistoryStore.this ){
+								
+								journal_records -= snapshot_records;
+							}
+						}catch( Throwable e ){
+							
+							log( "Failed to compact history journal for " + name, e );
+							
+						}finally{
+							
+							synchronized( JournalHistoryStore.this ){
+								
+								compacting			= false;
+								compaction_running	= false;
+								
+								JournalHistoryStore.this.notifyAll();
+							}
+						}
+					}
+				});
 		}
 		
-		private void
-		save()
+			// a queued compaction is abandoned, a running one is waited for (it doesn't need the
+			// History monitor that the caller holds) so that the files are settled before they might
+			// be reopened
+		
+		@Override
+		public synchronized void
+		close()
 		{
-			if ( dirty ){
-				
-				Map map = new HashMap();
-				
-				map.put( "last_publish", latest_publish );
+			closed = true;
+			
+			long	wait_until = SystemTime.getMonotonousTime() + HISTORY_CLOSE_WAIT;
+			
+			while( compaction_running ){
 				
-				List	l = new ArrayList( history.size());
+				long	rem = wait_until - SystemTime.getMonotonousTime();
 				
-				map.put( "ids", l );
+				if ( rem <= 0 ){
+					
+					log( "Timeout waiting for compaction of history journal for " + name );
+					
+					break;
+				}
 				
-				for ( HashWrapper k: history.keySet()){
+				try{
+					wait( rem );
+					
+				}catch( InterruptedException e ){
 					
-					l.add( k.getBytes());
+					break;
 				}
+			}
+		}
+		
+		private void
+		writeSnapshot(
+			long[]		ids,
+			int[]		added,
+			long		latest )
+		{
+			Map map = new HashMap();
+			
+			map.put( "last_publish", latest );
+			
+			List	l = new ArrayList( ids.length );
+			
+			map.put( "ids", l );
+			
+			for ( long k: ids ){
+				
+				l.add( LongHistorySet.toBytes( k ));
+			}
+			
+			byte[]	added_bytes = new byte[added.length*4];
+			
+			for ( int i=0;i<added.length;i++ ){
+				
+				int	a = added[i];
 				
-				FileUtil.writeResilientFile( file, map );
+				added_bytes[i*4]	= (byte)( a >>> 24 );
+				added_bytes[i*4+1]	= (byte)( a >>> 16 );
+				added_bytes[i*4+2]	= (byte)( a >>> 8 );
+				added_bytes[i*4+3]	= (byte)a;
 			}
+			
+			map.put( "added", added_bytes );
+			
+			FileUtil.writeResilientFile( file, map );
 		}
 	}
 }
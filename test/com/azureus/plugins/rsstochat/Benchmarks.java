@@ -0,0 +1,247 @@
+/*
+ * Copyright (C) Bigly Software, Inc, All Rights Reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307, USA.
+ */
+
+
+package com.azureus.plugins.rsstochat;
+
+import java.io.ByteArrayInputStream;
+import java.security.MessageDigest;
+import java.util.Locale;
+import java.util.Random;
+
+	// timings for the hot paths that the tests here check for correctness, each against the code it
+	// replaced. Nothing is asserted, the figures are for comparison on the machine at hand. Run with
+	// the client jar on the classpath
+
+public class
+Benchmarks
+{
+	private static final int	PASSES	= 5;
+	
+	public static void
+	main(
+		String[]	args )
+		
+		throws Exception
+	{
+		benchmarkHash();
+		
+		benchmarkTitles();
+		
+		benchmarkParse();
+		
+		benchmarkDispatch();
+	}
+	
+	private static void
+	benchmarkHash()
+	
+		throws Exception
+	{
+		String[]	ids = new String[10000];
+		
+		for ( int i=0;i<ids.length;i++ ){
+			
+			ids[i] = "magnet:?xt=urn:btih:" + String.format( "%040x", i ) + "&dn=Some+Item+Title+" + i + "&tr=udp%3A%2F%2Ftracker.example.com%3A80";
+		}
+		
+		MessageDigest	sha1 = MessageDigest.getInstance( "SHA-1" );
+		
+		long	sink = 0;
+		
+		for ( int pass=0;pass<PASSES;pass++ ){
+			
+			long	start = System.nanoTime();
+			
+			for ( String id: ids ){
+				
+				sink ^= LongHistorySet.toLong( sha1.digest( id.getBytes( "UTF-8" )));
+			}
+			
+			long	mid = System.nanoTime();
+			
+			for ( String id: ids ){
+				
+				sink ^= FastHash.hash64( id );
+			}
+			
+			long	end = System.nanoTime();
+			
+			System.out.println( "hash pass " + pass + ": SHA1 prefix " + ( mid - start )/ids.length + " ns/key, FastHash " + ( end - mid )/ids.length + " ns/key" );
+		}
+		
+		System.out.println( "(" + sink + ")" );
+	}
+	
+	private static void
+	benchmarkTitles()
+	{
+		Random	random = new Random( 0 );
+		
+		String[]	titles = new String[20000];
+		
+		for ( int i=0;i<titles.length;i++ ){
+			
+			titles[i] = EncodeTitleTest.randomString( random, random.nextInt( 120 ));
+		}
+		
+		long	sink = 0;
+		
+		for ( int pass=0;pass<PASSES;pass++ ){
+			
+			long	start = System.nanoTime();
+			
+			for ( String title: titles ){
+				
+				sink += EncodeTitleTest.encodeTitleReference( title, null, null ).length();
+			}
+			
+			long	mid = System.nanoTime();
+			
+			for ( String title: titles ){
+				
+				sink += MagnetBuilder.encodeTitle( title, null, null ).length();
+			}
+			
+			long	end = System.nanoTime();
+			
+			System.out.println( "title pass " + pass + ": old " + ( mid - start )/titles.length + " ns/title, new " + ( end - mid )/titles.length + " ns/title" );
+		}
+		
+		System.out.println( "(" + sink + ")" );
+	}
+	
+	private static void
+	benchmarkParse()
+	
+		throws Exception
+	{
+		StringBuilder	sb = new StringBuilder( 8*1024*1024 );
+		
+		sb.append( "<?xml version=\"1.0\" encoding=\"UTF-8\"?><rss><channel><title>Bench</title>" );
+		
+		for ( int i=0;i<20000;i++ ){
+			
+			sb.append( "<item><title>Item " ).append( i ).append( " with a reasonably long title</title>" );
+			sb.append( "<link>http://example.com/details/" ).append( i ).append( "</link>" );
+			sb.append( "<guid isPermaLink=\"false\">guid-" ).append( i ).append( "</guid>" );
+			sb.append( "<description>Some description text for item " ).append( i ).append( "</description>" );
+			sb.append( "<pubDate>Mon, 01 Jan 2024 00:00:00 GMT</pubDate>" );
+			sb.append( "<enclosure type=\"application/x-bittorrent\" url=\"http://example.com/" ).append( i ).append( ".torrent\" length=\"1000\"/>" );
+			sb.append( "<torrent:infoHash>" ).append( String.format( "%040x", i )).append( "</torrent:infoHash>" );
+			sb.append( "<torrent:seeds>10</torrent:seeds><torrent:peers>20</torrent:peers>" );
+			sb.append( "<category>Other</category>" );
+			sb.append( "</item>" );
+		}
+		
+		sb.append( "</channel></rss>" );
+		
+		byte[]	body = sb.toString().getBytes( "UTF-8" );
+		
+		for ( int pass=0;pass<PASSES;pass++ ){
+			
+			long	start = System.nanoTime();
+			
+			FeedParser.Feed feed = FeedParser.parse( new ByteArrayInputStream( body ));
+			
+			long	elapsed = System.nanoTime() - start;
+			
+			System.out.println( "parse pass " + pass + ": " + feed.getItemCount() + " items (" + body.length/1024 + "KB) at " + (long)( feed.getItemCount() * 1E9 / elapsed ) + " items/sec" );
+		}
+	}
+	
+	private static final String[]	child_names = {
+		"title", "link", "guid", "description", "pubDate", "enclosure", "torrent:infoHash",
+		"torrent:seeds", "torrent:peers", "category", "media:thumbnail", "dc:creator" };
+	
+	private static void
+	benchmarkDispatch()
+	{
+		long	sink = 0;
+		
+		int	loops = 200000;
+		
+		for ( int pass=0;pass<PASSES;pass++ ){
+			
+			long	start = System.nanoTime();
+			
+			for ( int i=0;i<loops;i++ ){
+				
+				for ( String name: child_names ){
+					
+					sink += oldDispatch( name, name.substring( name.indexOf( ':' ) + 1 ));
+				}
+			}
+			
+			long	mid = System.nanoTime();
+			
+			for ( int i=0;i<loops;i++ ){
+				
+				for ( String name: child_names ){
+					
+					sink += FeedParser.getHandler( name );
+				}
+			}
+			
+			long	end = System.nanoTime();
+			
+			long	num = (long)loops * child_names.length;
+			
+			System.out.println( "dispatch pass " + pass + ": old chain " + ( mid - start )/num + " ns/child, table " + ( end - mid )/num + " ns/child" );
+		}
+		
+		System.out.println( "(" + sink + ")" );
+	}
+	
+		// the shape of the original per-child test
+	
+	private static int
+	oldDispatch(
+		String		full_name,
+		String		name )
+	{
+		String	lc_child_name 		= name.toLowerCase();
+		String	lc_full_child_name 	= full_name.toLowerCase( Locale.getDefault());
+		
+		if ( lc_child_name.equals( "enclosure" )){
+			return( 1 );
+		}else if ( lc_child_name.equals( "link" ) || lc_child_name.equals( "guid" )){
+			return( 2 );
+		}else if ( lc_child_name.equals( "content" )){
+			return( 3 );
+		}else if ( lc_child_name.equals( "description" )){
+			return( 4 );
+		}else if ( lc_full_child_name.equals( "vuze:size" )){
+			return( 5 );
+		}else if ( lc_full_child_name.equals( "vuze:seeds" ) || lc_full_child_name.equals( "torrent:seeds" )){
+			return( 6 );
+		}else if ( lc_full_child_name.equals( "vuze:peers" ) || lc_full_child_name.equals( "torrent:peers" )){
+			return( 7 );
+		}else if ( lc_full_child_name.equals( "vuze:downloadurl" )){
+			return( 8 );
+		}else if ( lc_full_child_name.equals( "vuze:assethash" )){
+			return( 9 );
+		}else if ( lc_full_child_name.equals( "torrent:infoHash" )){
+			return( 10 );
+		}else if ( lc_full_child_name.equals( "media:thumbnail" )){
+			return( 11 );
+		}
+		
+		return( 0 );
+	}
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright (C) Bigly Software, Inc, All Rights Reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307, USA.
+ */
+
+
+package com.azureus.plugins.rsstochat;
+
+import java.util.Random;
+
+import com.biglybt.core.util.UrlUtils;
+
+	// checks MagnetBuilder.encodeTitle against the truncation loop it replaced over random
+	// multilingual titles and link lengths. The one intended difference is
+	// that the old loop chopped single chars and so could split a surrogate pair (leaving a '?'),
+	// the reference here chops whole code points. Run with the client jar on the classpath
+
+public class
+EncodeTitleTest
+{
+	private static final String[]	pools = {
+		"abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ0123456789",
+		" .-_*()[]&=+/:,'",
+		"\u00e0\u00e9\u00ee\u00f5\u00fc\u00e7\u00df\u00f1",
+		"\u0430\u0431\u0432\u0433\u0434\u0435\u0436\u0437",
+		"\u65e5\u672c\u8a9e\u4e2d\u6587\ud55c\uad6d\uc5b4",
+		"\ud83d\ude00\ud83c\udfac\ud83c\udfb5\ud83d\udcfa",
+	};
+	
+	public static void
+	main(
+		String[]	args )
+		
+		throws Exception
+	{
+		Random	random = new Random( 0 );
+		
+		String[]	titles = new String[20000];
+		
+		for ( int i=0;i<titles.length;i++ ){
+			
+			titles[i] = randomString( random, random.nextInt( 120 ));
+		}
+		
+		int	truncated = 0;
+		
+		for ( int i=0;i<titles.length;i++ ){
+			
+			String	title		= titles[i];
+			String	dl_link		= random.nextInt( 4 )==0?null:randomString( random, random.nextInt( 300 ));
+			String	cdp_link	= random.nextInt( 4 )==0?null:randomString( random, random.nextInt( 300 ));
+			
+			String	expected	= encodeTitleReference( title, dl_link, cdp_link );
+			String	actual		= MagnetBuilder.encodeTitle( title, dl_link, cdp_link );
+			
+			TestUtils.checkEquals( "title '" + title + "'", actual, expected );
+			
+			if ( actual.endsWith( "..." ) && !title.endsWith( "..." )){
+				
+				truncated++;
+			}
+		}
+		
+		System.out.println( titles.length + " titles match (" + truncated + " truncated)" );
+	}
+	
+		// package visible for Benchmarks
+	
+	static String
+	randomString(
+		Random		random,
+		int			len )
+	{
+		StringBuilder	sb = new StringBuilder( len*2 );
+		
+		String	pool = pools[random.nextInt( pools.length )];
+		
+		for ( int i=0;i<len;i++ ){
+			
+			if ( random.nextInt( 10 ) == 0 ){
+				
+				pool = pools[random.nextInt( pools.length )];
+			}
+			
+			int	pos = random.nextInt( pool.codePointCount( 0, pool.length()));
+			
+			sb.appendCodePoint( pool.codePointAt( pool.offsetByCodePoints( 0, pos )));
+		}
+		
+		return( sb.toString());
+	}
+	
+		// the original implementation, bar chopping code points rather than chars
+	
+	static String
+	encodeTitleReference(
+		String		title,
+		String		dl_link,
+		String		cdp_link )
+	{
+		if ( title.endsWith( "..." )){
+			
+			return( UrlUtils.encode( title ));
+		}
+		
+		int	baggage = (dl_link==null?0:UrlUtils.encode(dl_link).length()) + (cdp_link==null?0:UrlUtils.encode(cdp_link).length());
+		
+		int MAX_TITLE = 240 - (3*baggage)/5;
+		
+		MAX_TITLE = Math.min( Math.max( MAX_TITLE, 80 ), 180 );
+		
+		boolean	truncated = false;
+		
+		String str;
+		
+		while( true ){
+		
+			str = UrlUtils.encode( title );
+			
+			if ( str.length() <= MAX_TITLE ){
+				
+				break;
+			}
+			
+			title = title.substring( 0, title.offsetByCodePoints( title.length(), -1 ));
+			
+			if ( !truncated ){
+			
+				truncated = true;
+				
+				MAX_TITLE -= 3;
+			}
+		}
+		
+		if ( truncated ){
+			
+			str += "...";
+		}
+		
+		return( str );
+	}
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright (C) Bigly Software, Inc, All Rights Reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307, USA.
+ */
+
+
+package com.azureus.plugins.rsstochat;
+
+	// FastHash output is persisted in histories so it is pinned to golden values here - if any of
+	// these change then existing histories no longer match. Run with
+	// 'java com.azureus.plugins.rsstochat.FastHashTest'
+
+public class
+FastHashTest
+{
+	private static final String[]	inputs = {
+		"",
+		"a",
+		"ab",
+		"abc",
+		"abcd",
+		"abcde",
+		"abcdefgh",
+		"RSS: http://example.com/feed.xml/Public: test",
+		"magnet:?xt=urn:btih:0123456789abcdef0123456789abcdef01234567&dn=Test",
+		"\u00dcn\u00efc\u00f6d\u00e9 \u2713",
+		"\ud83d\ude00 emoji",
+	};
+	
+	private static final long[]	golden = {
+		0x33605fe82fa60161L,
+		0xb4764e7a3b46c0f6L,
+		0x02a0d3520f4fe0d6L,
+		0x48e9ce83f99a4971L,
+		0x9a50f2d269a62baeL,
+		0x7cbedd7d2d030183L,
+		0x3e4cb85a246d295cL,
+		0xddf00b3455c7a052L,
+		0x228f0e5cdba38a87L,
+		0x55c4c6aa9a9f76a0L,
+		0x0ac6d247f84f613eL,
+	};
+	
+	public static void
+	main(
+		String[]	args )
+		
+		throws Exception
+	{
+		for ( int i=0;i<inputs.length;i++ ){
+			
+			long	h = FastHash.hash64( inputs[i] );
+			
+			TestUtils.checkEquals( "hash of '" + inputs[i] + "'", Long.toHexString( h ), Long.toHexString( golden[i] ));
+			
+				// any CharSequence gives the same result as the equivalent String
+			
+			TestUtils.check( FastHash.hash64( new StringBuilder( inputs[i] )) == h, "StringBuilder hash of '" + inputs[i] + "'" );
+		}
+		
+		System.out.println( "golden values ok" );
+	}
+}
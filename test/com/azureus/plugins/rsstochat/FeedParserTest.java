@@ -0,0 +1,82 @@
+/*
+ * Copyright (C) Bigly Software, Inc, All Rights Reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307, USA.
+ */
+
+
+package com.azureus.plugins.rsstochat;
+
+import java.io.ByteArrayInputStream;
+
+	// checks that item child elements are dispatched whatever their case (including
+	// torrent:infoHash, which the old lower-cased comparison could never match, and its hex to
+	// base32 conversion). Run with the client jar on the classpath
+
+public class
+FeedParserTest
+{
+	public static void
+	main(
+		String[]	args )
+		
+		throws Exception
+	{
+		String	feed_str =
+			"<?xml version=\"1.0\" encoding=\"UTF-8\"?>" +
+			"<rss><channel><title>Test</title>" +
+			"<item>" +
+				"<TITLE>One</TITLE>" +
+				"<Enclosure type=\"application/x-bittorrent\" url=\"http://example.com/1.torrent\" length=\"999\"/>" +
+				"<VUZE:Size>123</VUZE:Size>" +
+				"<torrent:SEEDS>5</torrent:SEEDS>" +
+				"<Torrent:Peers>7</Torrent:Peers>" +
+				"<TORRENT:INFOHASH>ABCDEFGHIJKLMNOPQRSTUVWXYZ234567</TORRENT:INFOHASH>" +
+				"<GUID>http://example.com/details/1</GUID>" +
+				"<Media:Thumbnail url=\"http://example.com/1.jpg\"/>" +
+				"<unknown>ignored</unknown>" +
+			"</item>" +
+			"<item>" +
+				"<title>Two</title>" +
+				"<torrent:infoHash>0123456789abcdef0123456789ABCDEF01234567</torrent:infoHash>" +
+			"</item>" +
+			"</channel></rss>";
+		
+		FeedParser.Feed	feed = FeedParser.parse( new ByteArrayInputStream( feed_str.getBytes( "UTF-8" )));
+		
+		TestUtils.checkEquals( "feed title", feed.getTitle(), "Test" );
+		TestUtils.checkEquals( "feed item count", feed.getItemCount(), 2 );
+		
+		FeedParser.Item	item = feed.getItems()[0];
+		
+		TestUtils.checkEquals( "item title", item.getTitle(), "One" );
+		TestUtils.checkEquals( "item download link", item.getDownloadLink(), "http://example.com/1.torrent" );
+		TestUtils.checkEquals( "item details link", item.getDetailsLink(), "http://example.com/details/1" );
+		TestUtils.checkEquals( "item thumb link", item.getThumbLink(), "http://example.com/1.jpg" );
+		TestUtils.checkEquals( "item hash", item.getHash(), "ABCDEFGHIJKLMNOPQRSTUVWXYZ234567" );
+		TestUtils.checkEquals( "item size", item.getSize(), 123L );
+		TestUtils.checkEquals( "item seeds", item.getSeeds(), 5L );
+		TestUtils.checkEquals( "item leechers", item.getLeechers(), 7L );
+		
+			// a hex hash is converted to the base32 form used everywhere else
+		
+		item = feed.getItems()[1];
+		
+		TestUtils.checkEquals( "item title", item.getTitle(), "Two" );
+		TestUtils.checkEquals( "item hash", item.getHash(), "AERUKZ4JVPG66AJDIVTYTK6N54ASGRLH" );
+		
+		System.out.println( "dispatch ok" );
+	}
+}
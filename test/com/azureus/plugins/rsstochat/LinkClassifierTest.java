@@ -0,0 +1,66 @@
+/*
+ * Copyright (C) Bigly Software, Inc, All Rights Reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307, USA.
+ */
+
+
+package com.azureus.plugins.rsstochat;
+
+	// checks LinkClassifier against the classification the 'new URL' based code made for typical
+	// link and guid values. Run with 'java com.azureus.plugins.rsstochat.LinkClassifierTest'
+
+public class
+LinkClassifierTest
+{
+	private static final Object[][]	cases = {
+		{ "http://example.com/details/1",						LinkClassifier.LINK_DETAILS },
+		{ "HTTPS://example.com/file.TORRENT",					LinkClassifier.LINK_DOWNLOAD },
+		{ "ftp://example.com/pub/x.torrent",					LinkClassifier.LINK_DOWNLOAD },
+		{ "magnet:?xt=urn:btih:ABCDEFGHIJKLMNOPQRSTUVWXYZ234567",	LinkClassifier.LINK_DOWNLOAD },
+		{ "Magnet:?xt=urn:btih:ABCDEFGHIJKLMNOPQRSTUVWXYZ234567",	LinkClassifier.LINK_DOWNLOAD },
+		{ "bc://bt:abc",										LinkClassifier.LINK_DOWNLOAD },
+		{ "bctp://task/abc",									LinkClassifier.LINK_DOWNLOAD },
+		{ "dht://ABCDEF.dht",									LinkClassifier.LINK_DOWNLOAD },
+		{ "maggot://abc:def",									LinkClassifier.LINK_DETAILS },
+		{ "file:/tmp/x",										LinkClassifier.LINK_DETAILS },
+		{ "azplug:?id=x",										LinkClassifier.LINK_DETAILS },
+		{ "chat:?Test",											LinkClassifier.LINK_DETAILS },
+		{ "urn:uuid:1234",										LinkClassifier.LINK_NONE },
+		{ "tag:example.com,2024:1",								LinkClassifier.LINK_NONE },
+		{ "1234567",											LinkClassifier.LINK_NONE },
+		{ ":nothing",											LinkClassifier.LINK_NONE },
+		{ "",													LinkClassifier.LINK_NONE },
+	};
+	
+	public static void
+	main(
+		String[]	args )
+		
+		throws Exception
+	{
+		for ( Object[] c: cases ){
+			
+			TestUtils.checkEquals( "classification of '" + c[0] + "'", LinkClassifier.classify((String)c[0] ), c[1] );
+		}
+		
+		TestUtils.checkEquals( "classification of null", LinkClassifier.classify( null ), LinkClassifier.LINK_NONE );
+		
+		TestUtils.check( LinkClassifier.containsTorrentExtension( "http://x/a.Torrent?x=1" ), "containsTorrentExtension" );
+		TestUtils.check( !LinkClassifier.containsTorrentExtension( "http://x/torrent" ), "!containsTorrentExtension" );
+		
+		System.out.println( cases.length + " cases ok" );
+	}
+}
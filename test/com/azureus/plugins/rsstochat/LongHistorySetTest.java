@@ -0,0 +1,145 @@
+/*
+ * Copyright (C) Bigly Software, Inc, All Rights Reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307, USA.
+ */
+
+
+package com.azureus.plugins.rsstochat;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
+	// runs LongHistorySet against a LinkedHashMap model of the same FIFO set with random adds
+	// (including key 0 and repeats) and expiries. Run with 'java com.azureus.plugins.rsstochat.LongHistorySetTest'
+
+public class
+LongHistorySetTest
+{
+	public static void
+	main(
+		String[]	args )
+		
+		throws Exception
+	{
+		Random	random = new Random( 0 );
+		
+		for ( int capacity: new int[]{ 1, 7, 100, 5000 }){
+			
+			LongHistorySet			set		= new LongHistorySet( capacity );
+			Map<Long,Integer>		model	= new LinkedHashMap<Long,Integer>();
+			
+			int	mins = 0;
+			
+			for ( int i=0;i<100000;i++ ){
+				
+				int	op = random.nextInt( 100 );
+				
+				if ( op == 0 ){
+					
+					int	min_added = mins - random.nextInt( 50 );
+					
+					int	removed = 0;
+					
+					while( !model.isEmpty()){
+						
+						Map.Entry<Long,Integer> oldest = model.entrySet().iterator().next();
+						
+						if ( oldest.getValue() >= min_added ){
+							
+							break;
+						}
+						
+						model.remove( oldest.getKey());
+						
+						removed++;
+					}
+					
+					TestUtils.check( set.expire( min_added ) == removed, "expire count" );
+					
+				}else{
+					
+						// small key range so that repeats and collisions are common
+					
+					long	key = op < 5?0:( random.nextInt( capacity*3 + 1 ) * 0x9E3779B97F4A7C15L );
+					
+					if ( random.nextInt( 10 ) == 0 ){
+						
+						mins++;
+					}
+					
+					boolean	added = set.add( key, mins );
+					
+					TestUtils.check( added == !model.containsKey( key ), "add result" );
+					
+					if ( added ){
+						
+						if ( model.size() == capacity ){
+							
+							model.remove( model.keySet().iterator().next());
+						}
+						
+						model.put( key, mins );
+					}
+				}
+				
+				if ( i % 1000 == 0 ){
+					
+					compare( set, model );
+				}
+			}
+			
+			compare( set, model );
+		}
+		
+		System.out.println( "ok" );
+	}
+	
+	private static void
+	compare(
+		LongHistorySet			set,
+		Map<Long,Integer>		model )
+		
+		throws Exception
+	{
+		TestUtils.check( set.size() == model.size(), "size" );
+		
+		long[]	keys	= new long[model.size()];
+		int[]	added	= new int[model.size()];
+		
+		int	pos = 0;
+		
+		for ( Map.Entry<Long,Integer> entry: model.entrySet()){
+			
+			TestUtils.check( set.contains( entry.getKey()), "contains" );
+			
+			keys[pos]	= entry.getKey();
+			added[pos]	= entry.getValue();
+			
+			pos++;
+		}
+		
+		TestUtils.check( Arrays.equals( set.toArray(), keys ), "order" );
+		TestUtils.check( Arrays.equals( set.getAddedTimes(), added ), "added times" );
+		TestUtils.check( set.getNewest() == ( keys.length==0?0:keys[keys.length-1] ), "newest" );
+		
+		for ( long key=-50;key<50;key++ ){
+			
+			TestUtils.check( set.contains( key ) == model.containsKey( key ), "absent contains" );
+		}
+	}
+}
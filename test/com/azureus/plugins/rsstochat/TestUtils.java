@@ -0,0 +1,53 @@
+/*
+ * Copyright (C) Bigly Software, Inc, All Rights Reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307, USA.
+ */
+
+
+package com.azureus.plugins.rsstochat;
+
+	// assertions shared by the tests here, each of which is a main() that throws on the first failure
+
+public class
+TestUtils
+{
+	public static void
+	check(
+		boolean		ok,
+		String		what )
+		
+		throws Exception
+	{
+		if ( !ok ){
+			
+			throw( new Exception( what + " failed" ));
+		}
+	}
+	
+	public static void
+	checkEquals(
+		String		what,
+		Object		actual,
+		Object		expected )
+		
+		throws Exception
+	{
+		if ( expected==null?actual!=null:!expected.equals( actual )){
+			
+			throw( new Exception( what + ": expected '" + expected + "', got '" + actual + "'" ));
+		}
+	}
+}